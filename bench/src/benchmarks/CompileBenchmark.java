@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Compiles example/src/pattern.js (and the parts of the Closure Library it goog.require's) at each compilation level,
+ * the same way a `compile` request with just a closure_entry_point would. The output cache is off (it's only turned on
+ * by TCPServer.main), so every invocation runs the compiler. The library files are read and parsed during setup, so
+ * this measures a warm service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompileBenchmark {
+
+  @Param({"WHITESPACE_ONLY", "SIMPLE_OPTIMIZATIONS", "ADVANCED_OPTIMIZATIONS"})
+  public String level;
+
+  private Object fileCache;
+  private Map<String, Object> args;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+
+    fileCache = Service.newFileCache(true);
+
+    String path = System.getProperty("bench.pattern", "example/src/pattern.js");
+    Service.addFile(fileCache, path, new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+
+    args = new HashMap<String, Object>();
+    args.put("closure_entry_point", "example.pattern");
+    args.put("compilation_level", level);
+    args.put("process_closure_primitives", true);
+    args.put("warning_level", "QUIET");
+
+    //first compile reads the library files it needs out of the jar. Get that out of the way.
+    Service.compile(fileCache, args);
+  }
+
+  @Benchmark
+  public String compile() {
+    return Service.compile(fileCache, args);
+  }
+}
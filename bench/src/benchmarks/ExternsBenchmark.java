@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Getting at Closure's default externs, the way every compile does now and the way it used to. Doesn't depend on any
+ * file sizes, so it's kept out of FileCacheBenchmark's @Param.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExternsBenchmark {
+
+  private Object fileCache;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fileCache = Service.newFileCache(false);
+  }
+
+  /**
+   * What every compile does to get its externs.
+   */
+  @Benchmark
+  public int defaultExterns() {
+    return Service.getDefaultExterns(fileCache).size();
+  }
+
+  /**
+   * What every compile used to do to get its externs (and what FileCache does once on startup).
+   */
+  @Benchmark
+  public List<?> loadDefaultExterns() {
+    return Service.loadDefaultExterns(fileCache);
+  }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * FileCache.addFile for different file sizes. Every addFile changes the file's contents (two versions take turns), so
+ * each one pays for the digest, the new JSSourceFile and re-indexing the file's goog.provide's and goog.require's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileCacheBenchmark {
+
+  //in chars. Roughly a small file, a big one and a whole bundle.
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  private Object fileCache;
+
+  //two versions of the same file, so every addFile is a change.
+  private String[] versions;
+  private int next = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    fileCache = Service.newFileCache(false);
+    versions = new String[] {source(size, 0), source(size, 1)};
+  }
+
+  @Benchmark
+  public void addFile() {
+    Service.addFile(fileCache, "bench/file.js", versions[next]);
+    next ^= 1;
+  }
+
+  /**
+   * Something that looks like a Closure file: a provide, a few requires and then a lot of code.
+   */
+  static String source(int size, int version) {
+    StringBuilder source = new StringBuilder(size + 64);
+    source.append("goog.provide('bench.file');\n");
+    source.append("goog.require('goog.array');\n");
+    source.append("goog.require('goog.dom');\n");
+    source.append("bench.file.version = ").append(version).append(";\n");
+
+    for (int i = 0; source.length() < size; i++) {
+      source.append("bench.file.f").append(i).append(" = function(a, b) { return goog.array.indexOf(a, \"b\" + b); };\n");
+    }
+    source.setLength(size);
+    return source.toString();
+  }
+}
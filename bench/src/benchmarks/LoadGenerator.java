@@ -0,0 +1,529 @@
+package benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+
+/**
+ * Puts a running ClosureCompilerService under load the way a bunch of build agents would: each one opens a connection,
+ * runs through a session of requests one at a time and hangs up. Sessions either come from a file (one json request
+ * per line, sessions separated by a blank line) or are made up from the files in the Closure Library. Reports
+ * throughput, latency for each command, and how much heap the server used (from its `stats` command).
+ *
+ * Only meant to be pointed at a server on the same machine.
+ */
+public class LoadGenerator {
+
+  /**
+   * Parameters that can be passed on the cmdline.
+   */
+  static class Options {
+    @Option(name = "-p", aliases = "--port", metaVar = "number", usage = "Port the service is listening on. Defaults to 7990.")
+    int port = 7990;
+
+    @Option(name = "-c", aliases = "--concurrency", metaVar = "number", usage = "How many sessions run at the same time. Defaults to 8.")
+    int concurrency = 8;
+
+    @Option(name = "-n", aliases = "--sessions", metaVar = "number", usage = "How many sessions to run in total. Defaults to 100.")
+    int sessions = 100;
+
+    @Option(name = "--warmup", metaVar = "number", usage = "Sessions to run (one at a time) before measuring. Defaults to 5.")
+    int warmup = 5;
+
+    @Option(name = "--replay", metaVar = "file", usage = "Replays the sessions in this file (one json request per line, a blank line between sessions) round robin, instead of making them up.")
+    File replay;
+
+    @Option(name = "--record", metaVar = "file", usage = "Writes every session that's run to this file, in the same format --replay reads.")
+    File record;
+
+    @Option(name = "--library", metaVar = "dir", usage = "Where to find files for made up sessions. Defaults to lib/closure-library.")
+    File library = new File("lib/closure-library");
+
+    @Option(name = "--files", metaVar = "number", usage = "How many files a made up session adds. Defaults to 200.")
+    int files = 200;
+
+    @Option(name = "--compiles", metaVar = "number", usage = "How many compiles a made up session runs once its files are added. Defaults to 1.")
+    int compiles = 1;
+
+    @Option(name = "--level", metaVar = "level", usage = "compilation_level for made up sessions. Defaults to WHITESPACE_ONLY.")
+    String level = "WHITESPACE_ONLY";
+
+    @Option(name = "--seed", metaVar = "number", usage = "Seed for picking files for made up sessions, so runs can be repeated. Defaults to 42.")
+    long seed = 42;
+  }
+
+  private static Gson gson = new Gson();
+
+  //how often the server's heap is sampled while we're running.
+  private static final long STATS_INTERVAL_MS = 500;
+
+  private final Options options;
+
+  //recorded sessions. null if we're making them up.
+  private List<List<Map<String, Object>>> recorded;
+
+  //every .js file in the library, and the contents of the ones we've used so far.
+  private List<Path> libraryFiles;
+  private final Map<Path, String> contents = new ConcurrentHashMap<Path, String>();
+
+  //command -> latency (in ns) of every request, while measuring.
+  private final Map<String, List<Long>> latencies = new ConcurrentHashMap<String, List<Long>>();
+
+  //ERROR and {"error": ...} responses. Overloaded ones are counted again on their own.
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong overloaded = new AtomicLong();
+  private final AtomicLong failedSessions = new AtomicLong();
+
+  //where sessions are recorded to. null unless --record was passed.
+  private Writer recorder;
+
+  LoadGenerator(Options options) {
+    this.options = options;
+  }
+
+  public static void main(String[] argv) throws Exception {
+
+    Options options = new Options();
+    CmdLineParser parser = new CmdLineParser(options);
+    try {
+      parser.parseArgument(argv);
+    }catch(CmdLineException e){
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    new LoadGenerator(options).run();
+  }
+
+  void run() throws Exception {
+
+    if (options.replay != null) {
+      recorded = readSessions(options.replay);
+      System.out.println("Replaying " + recorded.size() + " recorded sessions.");
+    }else {
+      libraryFiles = listScripts(options.library.toPath());
+      System.out.println("Making up sessions from " + libraryFiles.size() + " files in " + options.library);
+    }
+
+    if (options.record != null) {
+      recorder = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(options.record), StandardCharsets.UTF_8));
+    }
+
+    //warm the server (and us) up. Nothing's measured yet.
+    for (int i = 0; i < options.warmup; i++) {
+      runSession(session(i), false);
+    }
+
+    //keep an eye on the server's heap while we're loading it up.
+    HeapSampler heap = new HeapSampler();
+    Thread sampler = new Thread(heap, "LoadGenerator-stats");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    ExecutorService agents = Executors.newFixedThreadPool(options.concurrency);
+    final AtomicInteger next = new AtomicInteger(options.warmup);
+    final int last = options.warmup + options.sessions;
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < options.concurrency; i++) {
+      agents.execute(new Runnable() {
+        public void run() {
+          for (int index; (index = next.getAndIncrement()) < last; ) {
+            try {
+              runSession(session(index), true);
+            }catch(IOException e){
+              failedSessions.incrementAndGet();
+              System.err.println("Session " + index + " failed: " + e);
+            }
+          }
+        }
+      });
+    }
+
+    agents.shutdown();
+    agents.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+    long elapsed = System.nanoTime() - start;
+
+    heap.stop();
+    sampler.join();
+
+    if (recorder != null) {
+      recorder.close();
+    }
+
+    report(elapsed, heap);
+  }
+
+  /**
+   * Runs a single session over its own connection, one request at a time.
+   *
+   * @param requests the session's requests
+   * @param measure false while warming up
+   * @throws IOException couldn't talk to the server
+   */
+  private void runSession(List<Map<String, Object>> requests, boolean measure) throws IOException {
+
+    Socket socket = new Socket("localhost", options.port);
+    try {
+
+      socket.setTcpNoDelay(true);
+
+      Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+      //sessions run side by side, so each one's recorded in one go once it's done.
+      StringBuilder recording = measure && recorder != null ? new StringBuilder() : null;
+
+      for (int i = 0; i < requests.size(); i++) {
+
+        Map<String, Object> request = new LinkedHashMap<String, Object>(requests.get(i));
+        request.put("id", i);
+
+        String cmd = String.valueOf(request.get("cmd"));
+        String json = gson.toJson(request);
+
+        if (recording != null) {
+          recording.append(json).append('\n');
+        }
+
+        long start = System.nanoTime();
+
+        out.write(json);
+        out.flush();
+
+        //every response is a single line. Most requests get one, but a compileBatch gets one for each target (tagged
+        //with `target`) before its final one, so wait for the final response with this request's id.
+        Map response;
+        do {
+          String line = in.readLine();
+          if (line == null) {
+            throw new EOFException("Server hung up after " + i + " requests.");
+          }
+          response = gson.fromJson(line, Map.class);
+        } while (response != null && (!isId(response.get("id"), i) || response.containsKey("target")));
+
+        long latency = System.nanoTime() - start;
+
+        if (measure) {
+          Object result = response != null ? response.get("result") : null;
+
+          if (result instanceof Map && "OVERLOADED".equals(((Map) result).get("error"))) {
+
+            //turned away without doing anything. Kept out of the cmd's latencies so they don't make it look quick.
+            errors.incrementAndGet();
+            overloaded.incrementAndGet();
+            latencies("overloaded").add(latency);
+            continue;
+          }
+
+          if (response == null || "ERROR".equals(result) || (result instanceof Map && ((Map) result).containsKey("error"))) {
+            errors.incrementAndGet();
+          }
+          latencies(cmd).add(latency);
+        }
+      }
+
+      if (recording != null) {
+        record(recording.append('\n').toString());
+      }
+
+    }finally{
+      socket.close();
+    }
+  }
+
+  /**
+   * @param id the `id` of a response. Comes back from gson as a double.
+   * @param expected the id the request was sent with
+   * @return true if the response is for that request
+   */
+  private static boolean isId(Object id, int expected) {
+    return id instanceof Number && ((Number) id).intValue() == expected;
+  }
+
+  /**
+   * @param index which session this is
+   * @return the requests to send. Recorded sessions are handed out round robin.
+   */
+  private List<Map<String, Object>> session(int index) throws IOException {
+
+    if (recorded != null) {
+      return recorded.get(index % recorded.size());
+    }
+
+    //same index, same session, so runs with the same seed can be compared.
+    Random random = new Random(options.seed + index);
+
+    List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>();
+
+    Map<String, Object> echo = new LinkedHashMap<String, Object>();
+    echo.put("cmd", "echo");
+    echo.put("msg", "hello");
+    requests.add(echo);
+
+    //a random handful of library files, added by name like a build agent would.
+    List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < options.files && !libraryFiles.isEmpty(); i++) {
+      Path path = libraryFiles.get(random.nextInt(libraryFiles.size()));
+      String name = options.library.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+      if (names.contains(name)) {
+        continue;
+      }
+
+      Map<String, Object> file = new LinkedHashMap<String, Object>();
+      file.put("name", name);
+      file.put("contents", read(path));
+      files.add(file);
+      names.add(name);
+    }
+
+    Map<String, Object> addFiles = new LinkedHashMap<String, Object>();
+    addFiles.put("cmd", "addFiles");
+    addFiles.put("files", files);
+    requests.add(addFiles);
+
+    Map<String, Object> getFiles = new LinkedHashMap<String, Object>();
+    getFiles.put("cmd", "getFiles");
+    requests.add(getFiles);
+
+    Map<String, Object> args = new LinkedHashMap<String, Object>();
+    args.put("js", names);
+    args.put("compilation_level", options.level);
+    args.put("warning_level", "QUIET");
+
+    for (int i = 0; i < options.compiles; i++) {
+      Map<String, Object> compile = new LinkedHashMap<String, Object>();
+      compile.put("cmd", "compile");
+      compile.put("args", args);
+      requests.add(compile);
+    }
+
+    return requests;
+  }
+
+  private String read(Path path) throws IOException {
+    String source = contents.get(path);
+    if (source == null) {
+      source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+      contents.put(path, source);
+    }
+    return source;
+  }
+
+  private synchronized void record(String session) throws IOException {
+    recorder.write(session);
+  }
+
+  private List<Long> latencies(String cmd) {
+    List<Long> list = latencies.get(cmd);
+    if (list == null) {
+      synchronized (latencies) {
+        list = latencies.get(cmd);
+        if (list == null) {
+          list = Collections.synchronizedList(new ArrayList<Long>());
+          latencies.put(cmd, list);
+        }
+      }
+    }
+    return list;
+  }
+
+  private void report(long elapsed, HeapSampler heap) {
+
+    double seconds = elapsed / 1e9;
+    long requests = 0;
+    for (List<Long> list : latencies.values()) {
+      requests += list.size();
+    }
+
+    System.out.println();
+    System.out.println(String.format("%d sessions (%d failed), %d requests in %.2fs at concurrency %d",
+        options.sessions, failedSessions.get(), requests, seconds, options.concurrency));
+    System.out.println(String.format("%.1f sessions/s, %.1f requests/s, %d error responses (%d OVERLOADED)",
+        (options.sessions - failedSessions.get()) / seconds, requests / seconds, errors.get(), overloaded.get()));
+    System.out.println();
+
+    System.out.println(String.format("%-10s %8s %10s %10s %10s %10s", "cmd", "count", "mean ms", "p50 ms", "p99 ms", "max ms"));
+    for (String cmd : new TreeSet<String>(latencies.keySet())) {
+
+      List<Long> sorted = new ArrayList<Long>(latencies.get(cmd));
+      Collections.sort(sorted);
+
+      long total = 0;
+      for (long latency : sorted) {
+        total += latency;
+      }
+
+      System.out.println(String.format("%-10s %8d %10.2f %10.2f %10.2f %10.2f", cmd, sorted.size(),
+          total / 1e6 / sorted.size(), percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+          sorted.get(sorted.size() - 1) / 1e6));
+    }
+
+    System.out.println();
+    if (heap.samples > 0) {
+      System.out.println(String.format("server heap: %.1fmb at the end, %.1fmb peak, %.1fmb max (%d samples)",
+          heap.last / 1048576.0, heap.peak / 1048576.0, heap.max / 1048576.0, heap.samples));
+    }else {
+      System.out.println("server heap: unknown (server doesn't answer `stats`)");
+    }
+  }
+
+  /**
+   * @param sorted latencies, smallest first. Can't be empty.
+   * @param fraction e.g. 0.99 for the 99th percentile
+   */
+  private static long percentile(List<Long> sorted, double fraction) {
+    int index = (int) Math.ceil(sorted.size() * fraction) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  /**
+   * Asks the server for its `stats` every so often and keeps track of how much heap it's using.
+   */
+  private class HeapSampler implements Runnable {
+
+    volatile boolean running = true;
+    volatile long last;
+    volatile long peak;
+    volatile long max;
+    volatile int samples;
+
+    void stop() {
+      running = false;
+    }
+
+    public void run() {
+      while (running) {
+        try {
+          sample();
+          Thread.sleep(STATS_INTERVAL_MS);
+        }catch(IOException e){
+          //server's too busy or doesn't know `stats`. Try again next time.
+          try {
+            Thread.sleep(STATS_INTERVAL_MS);
+          }catch(InterruptedException ie){
+            return;
+          }
+        }catch(InterruptedException e){
+          return;
+        }
+      }
+
+      //one last look now that the load's off.
+      try {
+        sample();
+      }catch(IOException e){
+        //we'll go with what we've got.
+      }
+    }
+
+    private void sample() throws IOException {
+      Socket socket = new Socket("localhost", options.port);
+      try {
+
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        out.write("{\"cmd\":\"stats\"}");
+        out.flush();
+
+        String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        if (line == null) {
+          return;
+        }
+
+        //the result is the stats as a json string.
+        Object result = gson.fromJson(line, Map.class).get("result");
+        if (!(result instanceof String) || "ERROR".equals(result)) {
+          return;
+        }
+
+        Map jvm = (Map) gson.fromJson((String) result, Map.class).get("jvm");
+        if (jvm == null) {
+          return;
+        }
+
+        last = ((Number) jvm.get("heapUsed")).longValue();
+        peak = Math.max(peak, last);
+        max = ((Number) jvm.get("heapMax")).longValue();
+        samples++;
+
+      }finally{
+        socket.close();
+      }
+    }
+  }
+
+  /**
+   * Reads sessions from a file: one json request per line, with a blank line between sessions.
+   */
+  private static List<List<Map<String, Object>>> readSessions(File file) throws IOException {
+
+    List<List<Map<String, Object>>> sessions = new ArrayList<List<Map<String, Object>>>();
+    List<Map<String, Object>> session = new ArrayList<Map<String, Object>>();
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      for (String line; (line = in.readLine()) != null; ) {
+        if (line.trim().length() == 0) {
+          if (!session.isEmpty()) {
+            sessions.add(session);
+            session = new ArrayList<Map<String, Object>>();
+          }
+        }else {
+          Map<String, Object> request = gson.fromJson(line, Map.class);
+
+          //ids are handed out again as the session's replayed.
+          request.remove("id");
+          session.add(request);
+        }
+      }
+    }finally{
+      in.close();
+    }
+
+    if (!session.isEmpty()) {
+      sessions.add(session);
+    }
+
+    if (sessions.isEmpty()) {
+      throw new IOException("No sessions in " + file);
+    }
+    return sessions;
+  }
+
+  /**
+   * @return every .js file under dir, in a stable order.
+   */
+  private static List<Path> listScripts(Path dir) throws IOException {
+    final List<Path> scripts = new ArrayList<Path>();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (file.toString().endsWith(".js")) {
+          scripts.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(scripts);
+    return scripts;
+  }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Reading an addFile request off the wire and writing a compile response back, for different payload sizes. Both go
+ * through the same code a connection does, from UTF-8 bytes in to UTF-8 bytes out; the socket is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProtocolBenchmark {
+
+  //same as TCPServer.RESPONSE_BUFFER_SIZE.
+  private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+  //in chars. Roughly a small file, a big one and a whole bundle.
+  @Param({"1024", "65536", "1048576"})
+  public int size;
+
+  //an addFile request, as the client would send it.
+  private byte[] request;
+
+  //compiled output to send back.
+  private String output;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+
+    //file contents have plenty of quotes and new lines, so there's escaping to do.
+    String contents = FileCacheBenchmark.source(size, 0);
+
+    Map<String, Object> file = new HashMap<String, Object>();
+    file.put("name", "bench/file.js");
+    file.put("contents", contents);
+
+    Map<String, Object> json = new HashMap<String, Object>();
+    json.put("cmd", "addFile");
+    json.put("id", 7);
+    json.put("file", file);
+
+    request = new Gson().toJson(json).getBytes(StandardCharsets.UTF_8);
+    output = contents;
+  }
+
+  @Benchmark
+  public Map<String, Object> readRequest() throws IOException {
+    JsonReader in = new JsonReader(new InputStreamReader(new ByteArrayInputStream(request), "UTF-8"));
+    in.setLenient(true);
+    return Service.readRequest(in);
+  }
+
+  @Benchmark
+  public long send() throws IOException {
+    CountingOutputStream socket = new CountingOutputStream();
+    Writer out = new BufferedWriter(new OutputStreamWriter(socket, "UTF-8"), RESPONSE_BUFFER_SIZE);
+    Service.send(7L, output, out);
+    return socket.count;
+  }
+
+  /**
+   * Stands in for the socket. Counts what's written so the JIT can't throw the writing away.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
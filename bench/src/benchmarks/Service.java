@@ -0,0 +1,132 @@
+package benchmarks;
+
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+
+
+/**
+ * The service's classes live in the default package, which can't be imported from a named one (and JMH won't
+ * generate benchmarks in the default package). Benchmarks get at them through here instead. Lookups are done once,
+ * so the cost of a call is just Method.invoke.
+ */
+final class Service {
+
+  private static final Class<?> TCP_SERVER = load("TCPServer");
+  private static final Class<?> FILE_CACHE = load("FileCache");
+  private static final Class<?> CONNECTION = load("TCPServer$Connection");
+
+  private static final Constructor<?> NEW_FILE_CACHE = constructor(FILE_CACHE, boolean.class);
+
+  private static final Method ADD_FILE = method(FILE_CACHE, "addFile", String.class, String.class);
+  private static final Method GET_DEFAULT_EXTERNS = method(FILE_CACHE, "getDefaultExterns");
+  private static final Method LOAD_DEFAULT_EXTERNS = method(FILE_CACHE, "loadDefaultExterns");
+
+  private static final Method HANDLE_COMPILE = method(TCP_SERVER, "handleCompileWithArgs", FILE_CACHE, Map.class);
+  private static final Method READ_REQUEST = method(TCP_SERVER, "readRequest", JsonReader.class, CONNECTION, FILE_CACHE);
+  private static final Method SEND = method(TCP_SERVER, "send", Object.class, Object.class, Writer.class);
+
+  private Service() {
+  }
+
+  /**
+   * @param includeClosure same as the service's --include-closure. The library has to be on the classpath, in a jar.
+   * @return a new FileCache
+   */
+  static Object newFileCache(boolean includeClosure) {
+    try {
+      return NEW_FILE_CACHE.newInstance(includeClosure);
+    }catch(InvocationTargetException e){
+      throw unwrap(e);
+    }catch(ReflectiveOperationException e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static void addFile(Object fileCache, String name, String contents) {
+    invoke(ADD_FILE, fileCache, name, contents);
+  }
+
+  static List<?> getDefaultExterns(Object fileCache) {
+    return (List<?>) invoke(GET_DEFAULT_EXTERNS, fileCache);
+  }
+
+  /**
+   * @return Closure's default externs, unzipped and decoded from compiler.jar all over again.
+   */
+  static List<?> loadDefaultExterns(Object fileCache) {
+    return (List<?>) invoke(LOAD_DEFAULT_EXTERNS, fileCache);
+  }
+
+  /**
+   * Same as a `compile` request, minus the trip through the compile pool.
+   */
+  static String compile(Object fileCache, Map<String, Object> args) {
+    return (String) invoke(HANDLE_COMPILE, null, fileCache, args);
+  }
+
+  /**
+   * Reads a request the way a connection does. Only good for requests that are handed back whole (i.e. not an
+   * addFiles with `cmd` first), since there's no connection to answer on.
+   */
+  static Map<String, Object> readRequest(JsonReader in) {
+    return (Map<String, Object>) invoke(READ_REQUEST, null, in, null, null);
+  }
+
+  /**
+   * Writes a json response the way a connection does.
+   */
+  static void send(Object id, Object msg, Writer out) {
+    invoke(SEND, null, id, msg, out);
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    }catch(InvocationTargetException e){
+      throw unwrap(e);
+    }catch(IllegalAccessException e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static RuntimeException unwrap(InvocationTargetException e) {
+    if (e.getCause() instanceof RuntimeException) {
+      return (RuntimeException) e.getCause();
+    }
+    return new IllegalStateException(e.getCause());
+  }
+
+  private static Class<?> load(String name) {
+    try {
+      return Class.forName(name);
+    }catch(ClassNotFoundException e){
+      throw new IllegalStateException("The service's classes need to be on the classpath. Couldn't find " + name, e);
+    }
+  }
+
+  private static Constructor<?> constructor(Class<?> type, Class<?>... parameterTypes) {
+    try {
+      Constructor<?> constructor = type.getDeclaredConstructor(parameterTypes);
+      constructor.setAccessible(true);
+      return constructor;
+    }catch(NoSuchMethodException e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+    try {
+      Method method = type.getDeclaredMethod(name, parameterTypes);
+      method.setAccessible(true);
+      return method;
+    }catch(NoSuchMethodException e){
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -206,13 +206,14 @@ ClosureCompilerService.prototype = {
       client.on('data', (function() {
         var s = '';
         return function(data) {
-          var json;
+          var lines;
           s += data.toString();
-          try{
-            json = JSON.parse(s);
-            s = '';
-            client.emit('response', json);
-          }catch(e) {}
+          //every response is a single line of json. Anything after the last new line is still on its way.
+          lines = s.split('\n');
+          s = lines.pop();
+          lines.forEach(function(line) {
+            if (line) client.emit('response', JSON.parse(line));
+          });
         };
       }()));
       if (typeof(cmd) !== 'string') cmd = JSON.stringify(cmd);
@@ -0,0 +1,197 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Decides whether there's room for another compile or another request's worth of data before we take it on. When
+ * there isn't, the client gets an OVERLOADED error (see overloaded()) telling it when to try again, instead of the
+ * whole jvm grinding to a halt in GC (or running out of memory) and every client losing.
+ *
+ * Two things are limited: compiles that have been taken on but haven't finished (running or waiting for a compile
+ * thread), and bytes of requests that are being read or handled. Both limits shrink when the heap's getting full:
+ * compiles aren't taken on at all once less than MIN_HEADROOM of the heap is free, and requests can only use up half
+ * of whatever's free. There's always room for one of each when nothing else is going on, so a big request on a quiet
+ * server still gets through, but no single request ever gets more than maxRequestBytes.
+ */
+class Admission {
+
+  //fraction of the heap that has to be free to take on another compile.
+  private static final double MIN_HEADROOM = 0.15;
+
+  //bounds on how long (in seconds) clients are told to wait before trying again.
+  private static final long MIN_RETRY_AFTER = 1;
+  private static final long MAX_RETRY_AFTER = 60;
+
+  private final int maxCompiles;
+  private final long maxRequestBytes;
+
+  //how many compiles can run at the same time. Used to guess how long the ones we've got will take.
+  private final int compileThreads;
+
+  //where we get the average compile time from.
+  private final Stats stats;
+
+  //compiles taken on and not finished yet, and bytes of requests being read or handled.
+  private int compiles = 0;
+  private long requestBytes = 0;
+
+  //how many times we've said no. Only used for stats.
+  private long rejectedCompiles = 0;
+  private long rejectedRequests = 0;
+
+  /**
+   * @param compileThreads how many compiles can run at the same time
+   * @param maxCompiles most compiles to take on at once (running plus waiting). 0 means 4 per compile thread.
+   * @param maxRequestBytes most bytes of requests to be reading or handling at once. 0 means a quarter of the heap.
+   * @param stats where compile times are recorded
+   */
+  Admission(int compileThreads, int maxCompiles, long maxRequestBytes, Stats stats) {
+    this.compileThreads = compileThreads;
+    this.maxCompiles = maxCompiles > 0 ? maxCompiles : compileThreads * 4;
+    this.maxRequestBytes = maxRequestBytes > 0 ? maxRequestBytes : Runtime.getRuntime().maxMemory() / 4;
+    this.stats = stats;
+  }
+
+  /**
+   * Takes on some compiles, if there's room for them.
+   *
+   * @param count number of compiles (e.g. a compileBatch's targets). They're taken on all together or not at all.
+   * @return true if they were taken on. Call releaseCompiles once each one's finished.
+   */
+  synchronized boolean tryAcquireCompiles(int count) {
+
+    if (compiles > 0 && (compiles + count > maxCompiles || headroom() < MIN_HEADROOM * heapMax())) {
+      rejectedCompiles++;
+      return false;
+    }
+
+    compiles += count;
+    return true;
+  }
+
+  synchronized void releaseCompiles(int count) {
+    compiles -= count;
+  }
+
+  /**
+   * Takes on more of a request, if there's room for it.
+   *
+   * @param bytes how many more bytes of the request there are
+   * @param held how many bytes of the same request have already been taken on. They don't count against it, but they
+   *             do count towards maxRequestBytes.
+   * @return true if they were taken on. Call releaseBytes once the request's been handled.
+   */
+  synchronized boolean tryAcquireBytes(long bytes, long held) {
+
+    if (bytes <= 0) {
+      return true;
+    }
+
+    //too big for us however quiet it is.
+    if (held + bytes > maxRequestBytes) {
+      rejectedRequests++;
+      return false;
+    }
+
+    if (requestBytes - held > 0 && requestBytes + bytes > requestLimit()) {
+      rejectedRequests++;
+      return false;
+    }
+
+    requestBytes += bytes;
+    return true;
+  }
+
+  synchronized void releaseBytes(long bytes) {
+    requestBytes -= bytes;
+  }
+
+  /**
+   * @return most bytes a single request can ever take up.
+   */
+  long maxRequestBytes() {
+    return maxRequestBytes;
+  }
+
+  /**
+   * @return what to send back instead of a result when there's no room.
+   */
+  Map<String, Object> overloaded() {
+    Map<String, Object> error = new LinkedHashMap<String, Object>();
+    error.put("error", "OVERLOADED");
+    error.put("retryAfter", retryAfter());
+    return error;
+  }
+
+  /**
+   * Guesses how long (in seconds) until there's room again: long enough for the compiles we've already taken on to
+   * get through the compile threads, going by how long compiles have been taking.
+   */
+  private long retryAfter() {
+
+    int waiting;
+    synchronized (this) {
+      waiting = compiles;
+    }
+
+    double seconds = stats.meanMillis("compile") * waiting / compileThreads / 1000;
+    return Math.max(MIN_RETRY_AFTER, Math.min(MAX_RETRY_AFTER, (long) Math.ceil(seconds)));
+  }
+
+  /**
+   * @return most bytes of requests that can be in flight right now.
+   */
+  private long requestLimit() {
+    return Math.min(maxRequestBytes, headroom() / 2);
+  }
+
+  /**
+   * Works out how much of the heap is free, not counting garbage. The young generation is counted as of its last
+   * collection, since most of what's in it now is garbage; everything else is counted as it is.
+   *
+   * @return bytes of heap that are free, roughly.
+   */
+  static long headroom() {
+
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+      if (pool.getType() != MemoryType.HEAP) {
+        continue;
+      }
+
+      //only the old generation supports usage thresholds.
+      MemoryUsage afterCollection = pool.getCollectionUsage();
+      if (!pool.isUsageThresholdSupported() && afterCollection != null) {
+        used += afterCollection.getUsed();
+      }else {
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return heapMax() - used;
+  }
+
+  private static long heapMax() {
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  /**
+   * @return what's been taken on, the limits as they are right now and how often we've said no, for `stats`.
+   */
+  synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("compiles", compiles);
+    stats.put("maxCompiles", maxCompiles);
+    stats.put("requestBytes", requestBytes);
+    stats.put("maxRequestBytes", maxRequestBytes);
+    stats.put("requestLimit", requestLimit());
+    stats.put("heapHeadroom", headroom());
+    stats.put("rejectedCompiles", rejectedCompiles);
+    stats.put("rejectedRequests", rejectedRequests);
+    return stats;
+  }
+}
@@ -0,0 +1,83 @@
+import java.util.Map;
+
+import com.google.javascript.jscomp.*;
+import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.rhino.Node;
+
+
+/**
+ * A SourceAst that only has to parse its source file once. FileCache holds on to an untouched copy of every tree it has
+ * parsed, keyed by the parser settings it was parsed with, and each compile gets its own clone of that copy (compiler
+ * passes rewrite the tree they're handed, so the copy itself is never given out).
+ *
+ * One of these is created per compile per file; the parsed copies it reads from and writes to are shared.
+ */
+class CachedAst implements SourceAst {
+
+  //the file this is an AST for.
+  private SourceFile sourceFile;
+
+  //same id JsAst would give this file, so the compiler can match the tree up with its input.
+  private final InputId inputId;
+
+  //untouched parse results for this file (shared by every compile), keyed by parser settings.
+  private final Map<String, Node> parsedRoots;
+
+  //parser settings used by the compile this instance belongs to.
+  private final String parserKey;
+
+  //the tree handed to this compile. Passes change it, so it's never put back in parsedRoots.
+  private Node root;
+
+  /**
+   * @param sourceFile the file to parse (or to pull a parse result for)
+   * @param parsedRoots untouched parse results for the file. Should be safe to use from several threads at once.
+   * @param parserKey describes the parser settings of the current compile. See TCPServer.parserKey.
+   */
+  CachedAst(SourceFile sourceFile, Map<String, Node> parsedRoots, String parserKey) {
+    this.sourceFile = sourceFile;
+    this.inputId = new InputId(sourceFile.getName());
+    this.parsedRoots = parsedRoots;
+    this.parserKey = parserKey;
+  }
+
+  public Node getAstRoot(AbstractCompiler compiler) {
+    if (root == null) {
+
+      //someone's already parsed this file with the same settings. Just copy it.
+      Node parsed = parsedRoots.get(parserKey);
+      if (parsed != null) {
+
+        root = parsed.cloneTree();
+
+      }else {
+
+        //nope, parse it the usual way.
+        int errors = ((Compiler) compiler).getErrors().length;
+        root = new JsAst(sourceFile).getAstRoot(compiler);
+
+        //only hang on to clean parses. Files with syntax errors need to report them again on the next compile.
+        if (root != null && ((Compiler) compiler).getErrors().length == errors) {
+          parsedRoots.put(parserKey, root.cloneTree());
+        }
+      }
+    }
+    return root;
+  }
+
+  public void clearAst() {
+    root = null;
+  }
+
+  public InputId getInputId() {
+    return inputId;
+  }
+
+  public SourceFile getSourceFile() {
+    return sourceFile;
+  }
+
+  public void setSourceFile(SourceFile file) {
+    this.sourceFile = file;
+  }
+}
@@ -0,0 +1,639 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs every compile (plain `compile`s, compileBatch targets and async jobs) on a fixed number of compile threads.
+ * Waiting compiles are run interactive ones first: WHITESPACE_ONLY and SIMPLE_OPTIMIZATIONS builds (someone's watch
+ * build, probably) go ahead of ADVANCED_OPTIMIZATIONS ones (probably CI), and compiles of the same priority run in the
+ * order they came in.
+ *
+ * Compiles that are asked for while an identical one (same key, see TCPServer.compileKey) is already waiting or
+ * running don't get compiled again. They're attached to the one that's already going and get its output when it's
+ * done, so a dozen clients asking for the same thing at once only cost one compile. Each client still gets its own
+ * Job, with its own id and time limit.
+ *
+ * A job can be given a wall-clock limit, counted from when it's submitted. A job that runs out of time, or that's
+ * cancelled, is finished right away: whoever's waiting on it is told, and once no job is waiting on a compile any
+ * more, that compile is stopped. If it hasn't started it never will. The compiler can't be stopped part way through a
+ * pass though, so a compile that's already running is only interrupted; its thread stays busy until the compiler gets
+ * to the end, and what it comes up with is thrown away.
+ *
+ * Only compiles take up room in Admission, not jobs: attaching to a compile that's already going is free. A compile
+ * holds on to its room until it's really ended (finished running, or been taken out of the queue before it started),
+ * not just until its jobs have. A compile that's run out of time is still using up a compile thread, so it still
+ * counts.
+ */
+class CompileJobs {
+
+  /**
+   * Where a job's at. Everything after RUNNING is final.
+   */
+  enum State {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED, TIMED_OUT
+  }
+
+  /**
+   * Gets told when a job's finished, however it finished.
+   */
+  interface Listener {
+    void finished(Job job);
+  }
+
+  /**
+   * What a client gets for a compile it's asked for. Several jobs can be waiting on the same Run.
+   */
+  static class Job {
+
+    //handed to clients for async jobs, so they can ask about it later.
+    final long id;
+
+    //when it was submitted (System.nanoTime), for stats and the time limit.
+    final long submitted;
+
+    //the compile this job's waiting on.
+    private final Run run;
+
+    //QUEUED until the job's finished. Whether it's running is up to the run.
+    private State state = State.QUEUED;
+    private String result;
+    private long finished;
+
+    //waiting to be told the job's finished.
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    //fires when the job runs out of time. null if it has no limit (or it's finished). Guarded by the job's lock, so
+    //whichever of finish() and setTimeout() comes second cancels it.
+    private ScheduledFuture<?> timeout;
+
+    private Job(long id, Run run) {
+      this.id = id;
+      this.run = run;
+      this.submitted = System.nanoTime();
+    }
+
+    /**
+     * Stops the job. The compile it was waiting on is stopped too, unless other jobs are still waiting on it.
+     *
+     * @param why CANCELLED or TIMED_OUT
+     * @return true if the job was stopped, false if it had already finished.
+     */
+    boolean cancel(State why) {
+
+      if (!finish(why, null)) {
+        return false;
+      }
+
+      run.detach(this);
+      return true;
+    }
+
+    /**
+     * Finishes the job, unless it's already finished, and tells everyone waiting on it.
+     *
+     * @return true if this finished the job.
+     */
+    private boolean finish(State state, String result) {
+
+      List<Listener> waiting;
+      ScheduledFuture<?> timeout;
+      synchronized (this) {
+
+        if (isFinished()) {
+          return false;
+        }
+
+        this.state = state;
+        this.result = result;
+        this.finished = System.nanoTime();
+
+        waiting = new ArrayList<Listener>(listeners);
+        listeners.clear();
+
+        timeout = this.timeout;
+        this.timeout = null;
+      }
+
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+
+      for (Listener listener : waiting) {
+        listener.finished(this);
+      }
+      return true;
+    }
+
+    /**
+     * Hangs on to the job's time limit so it can be cancelled once the job's finished. If the job's already finished
+     * (it can be done before the limit's even been scheduled), it's cancelled right away.
+     */
+    private void setTimeout(ScheduledFuture<?> timeout) {
+      synchronized (this) {
+        if (!isFinished()) {
+          this.timeout = timeout;
+          return;
+        }
+      }
+      timeout.cancel(false);
+    }
+
+    /**
+     * Calls listener on executor once the job's finished. Listeners that do anything slow (like writing a response to
+     * a client) should use this, so they don't hold up the compile thread, the timer or anyone else waiting on the
+     * same compile.
+     *
+     * @param listener what to call
+     * @param executor where to call it
+     */
+    void addListener(final Listener listener, final Executor executor) {
+      addListener(new Listener() {
+        public void finished(final Job job) {
+          executor.execute(new Runnable() {
+            public void run() {
+              listener.finished(job);
+            }
+          });
+        }
+      });
+    }
+
+    /**
+     * Calls listener once the job's finished, on whichever thread finished it. Right away (on this thread) if it
+     * already has. Only for listeners that don't block.
+     *
+     * @param listener what to call
+     */
+    void addListener(Listener listener) {
+      synchronized (this) {
+        if (!isFinished()) {
+          listeners.add(listener);
+          return;
+        }
+      }
+      listener.finished(this);
+    }
+
+    synchronized State getState() {
+      if (!isFinished() && run.started != 0) {
+        return State.RUNNING;
+      }
+      return state;
+    }
+
+    synchronized boolean isFinished() {
+      return state != State.QUEUED;
+    }
+
+    /**
+     * @return the compiled output, or null unless the job's DONE.
+     */
+    synchronized String getResult() {
+      return result;
+    }
+
+    /**
+     * @return what the `status` command tells the client about the job.
+     */
+    synchronized Map<String, Object> getStatus() {
+
+      long now = System.nanoTime();
+      long started = run.started;
+
+      Map<String, Object> status = new LinkedHashMap<String, Object>();
+      status.put("job", id);
+      status.put("state", getState().name());
+      status.put("priority", run.batch ? "batch" : "interactive");
+
+      //time spent waiting for a compile thread, then time spent compiling. Both are still counting if it's not done.
+      //A job that joined a compile that was already running never waited.
+      long end = finished != 0 ? finished : now;
+      long start = started != 0 ? Math.max(started, submitted) : end;
+      status.put("queuedMs", (start - submitted) / 1000000);
+      if (started != 0) {
+        status.put("runningMs", (end - start) / 1000000);
+      }
+      return status;
+    }
+  }
+
+  /**
+   * A single compile, run once however many jobs are waiting on it. Queued in the pool itself, so it has to be
+   * comparable for the priority queue to order it.
+   */
+  private class Run implements Runnable, Comparable<Run> {
+
+    //what identical compiles have in common. null if it can't be shared.
+    final String key;
+
+    //true for ADVANCED_OPTIMIZATIONS compiles, which wait behind everything else.
+    final boolean batch;
+
+    //breaks ties between runs of the same priority, so they run first come first served.
+    private final long sequence;
+
+    //the compile itself. Returns the output to send back.
+    private final Callable<String> task;
+
+    //when it started (System.nanoTime). 0 until then.
+    volatile long started;
+
+    //true once it's finished or been stopped. No more jobs can be attached after that.
+    private boolean stopped = false;
+
+    //thread running the compile, while it's running. Interrupted if it's stopped.
+    private Thread thread;
+
+    //jobs waiting on it, that haven't finished.
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    //true if it was taken on in Admission, to be given back once it's ended. ended is true once it has.
+    private final boolean admitted;
+    private boolean ended = false;
+
+    Run(String key, boolean batch, Callable<String> task, boolean admitted) {
+      this.key = key;
+      this.batch = batch;
+      this.admitted = admitted;
+      this.sequence = CompileJobs.this.sequence.incrementAndGet();
+      this.task = task;
+    }
+
+    public int compareTo(Run other) {
+      if (batch != other.batch) {
+        return batch ? 1 : -1;
+      }
+      return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+    }
+
+    /**
+     * @return true if the job will get this run's output, false if it's too late (the run's finished or stopped).
+     */
+    synchronized boolean attach(Job job) {
+      if (stopped) {
+        return false;
+      }
+      jobs.add(job);
+      return true;
+    }
+
+    /**
+     * A job's given up on this run. Stops the run if nobody else is waiting on it.
+     */
+    void detach(Job job) {
+
+      synchronized (this) {
+
+        jobs.remove(job);
+        if (stopped || !jobs.isEmpty()) {
+          return;
+        }
+
+        stopped = true;
+        if (thread != null) {
+          thread.interrupt();
+        }
+      }
+
+      //stopped runs can't take up room in the queue until their turn comes around, and identical compiles asked for
+      //from here on can't be attached to it. If it's already running (or about to), it ends once it gets back.
+      forget();
+      if (pool.remove(this)) {
+        end();
+      }
+    }
+
+    public void run() {
+
+      synchronized (this) {
+        //everybody gave up on it while it was waiting.
+        if (stopped) {
+          end();
+          return;
+        }
+        started = System.nanoTime();
+        thread = Thread.currentThread();
+      }
+
+      State state = State.FAILED;
+      String result = null;
+      try {
+        try {
+
+          result = task.call();
+          state = State.DONE;
+
+        }catch(Exception e){
+
+          //the compiler blew up. Unless we did that by interrupting it, someone should hear about it.
+          if (!isStopped()) {
+            e.printStackTrace(System.err);
+          }
+
+        }finally{
+
+          synchronized (this) {
+            thread = null;
+          }
+
+          //a detach can interrupt us right up until the line above. Don't leave it for the next compile to trip over.
+          Thread.interrupted();
+        }
+
+      }finally{
+
+        //even if it died of an Error (say, running out of memory), everyone waiting is told it FAILED and it's
+        //forgotten. Otherwise identical compiles would go on attaching to it and never hear back.
+        List<Job> waiting;
+        synchronized (this) {
+          stopped = true;
+          waiting = new ArrayList<Job>(jobs);
+          jobs.clear();
+        }
+        end();
+
+        for (Job job : waiting) {
+          job.finish(state, result);
+        }
+      }
+    }
+
+    private synchronized boolean isStopped() {
+      return stopped;
+    }
+
+    private void forget() {
+      if (key != null) {
+        runs.remove(key, this);
+      }
+    }
+
+    /**
+     * The run's done with its compile thread (or never got one). Gives its room back. Only the first call counts.
+     */
+    private void end() {
+
+      synchronized (this) {
+        if (ended) {
+          return;
+        }
+        ended = true;
+      }
+
+      forget();
+      if (admitted) {
+        admission.releaseCompiles(1);
+      }
+    }
+  }
+
+  //how long a finished async job is kept around for its result to be picked up.
+  private static final long RESULT_TTL_MINUTES = 5;
+
+  //runs the compiles, interactive ones first. Sized so we don't have more compiles going than we've got cores for.
+  private final ThreadPoolExecutor pool;
+
+  //times jobs out, and forgets async jobs nobody came back for.
+  private final ScheduledThreadPoolExecutor timer;
+
+  //async jobs, by id. Kept until their result's been picked up (or for a while after they're done).
+  private final Map<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+
+  //compiles that are waiting or running, by key, so identical ones can be attached to them.
+  private final ConcurrentMap<String, Run> runs = new ConcurrentHashMap<String, Run>();
+
+  //wall-clock limit for every job, in milliseconds. 0 means there's no limit.
+  private final long timeoutMillis;
+
+  //where compiles are taken on, and their room given back once they've ended. null if nothing's limited.
+  private final Admission admission;
+
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong sequence = new AtomicLong();
+
+  //number of jobs that were cancelled, ran out of time or were attached to a compile that was already going. Only
+  //used for stats.
+  private final AtomicLong cancelled = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param threads how many compiles can run at the same time
+   * @param timeoutMillis wall-clock limit for every job (from when it's submitted), in milliseconds. 0 means there's
+   * no limit.
+   * @param admission where compiles are taken on. null if nothing's limited.
+   */
+  CompileJobs(int threads, long timeoutMillis, Admission admission) {
+
+    this.timeoutMillis = timeoutMillis;
+    this.admission = admission;
+
+    //runs queue up in priority order. Everything's submitted with execute(), so the queue only ever holds Runs.
+    pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TCPServer-compile");
+          }
+        });
+
+    timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        //don't keep the jvm alive on our account.
+        Thread thread = new Thread(runnable, "TCPServer-timeout");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    //most jobs finish well inside their limit. Don't keep their timeouts around until they would have gone off.
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Queues up a compile, or attaches to an identical one that's already waiting or running.
+   *
+   * @param key what identical compiles have in common (see TCPServer.compileKey). null if it can't be shared.
+   * @param task the compile. Returns the output to send back.
+   * @param args json args sent from client. Decide the compile's priority.
+   * @param timeoutMillis wall-clock limit for this job, in milliseconds. Can only be shorter than the limit every job
+   * gets. 0 means just use that.
+   * @param async true to keep the job around (by id) so the client can ask about it with get()
+   * @return the job. Add a listener to find out when it's done. null if it needed a compile of its own and there's no
+   * room for one (see Admission).
+   */
+  Job submit(String key, Callable<String> task, Map args, long timeoutMillis, boolean async) {
+
+    long id = ids.incrementAndGet();
+
+    Job job;
+    while (true) {
+
+      //already going? Then wait for that one.
+      Run run = key != null ? runs.get(key) : null;
+      if (run != null) {
+
+        job = new Job(id, run);
+        if (run.attach(job)) {
+          coalesced.incrementAndGet();
+          break;
+        }
+
+        //it just finished (or was stopped). Don't let it get in the way.
+        runs.remove(key, run);
+        continue;
+      }
+
+      //a compile of its own, which is what takes up room. Compiles are started one at a time, so when identical ones
+      //race to start, the ones that lose wait for the winner's instead of being turned away.
+      synchronized (this) {
+
+        if (key != null && runs.containsKey(key)) {
+          continue;
+        }
+
+        if (admission != null && !admission.tryAcquireCompiles(1)) {
+          return null;
+        }
+
+        run = new Run(key, isBatch(args), task, admission != null);
+        job = new Job(id, run);
+        run.attach(job);
+
+        if (key != null) {
+          runs.put(key, run);
+        }
+      }
+
+      pool.execute(run);
+      break;
+    }
+
+    if (this.timeoutMillis > 0 && (timeoutMillis <= 0 || timeoutMillis > this.timeoutMillis)) {
+      timeoutMillis = this.timeoutMillis;
+    }
+
+    if (timeoutMillis > 0) {
+      final Job timed = job;
+      job.setTimeout(timer.schedule(new Runnable() {
+        public void run() {
+          if (timed.cancel(State.TIMED_OUT)) {
+            timedOut.incrementAndGet();
+          }
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    if (async) {
+      track(job);
+    }
+    return job;
+  }
+
+  /**
+   * For compiles that can't even be submitted (e.g. their args don't make sense).
+   *
+   * @param async true to keep the job around (by id) so the client can ask about it with get()
+   * @return a job that's already FAILED
+   */
+  Job failed(boolean async) {
+
+    Run run = new Run(null, false, null, false);
+    run.stopped = true;
+
+    Job job = new Job(ids.incrementAndGet(), run);
+    job.finish(State.FAILED, null);
+
+    if (async) {
+      track(job);
+    }
+    return job;
+  }
+
+  /**
+   * Keeps an async job around so the client can ask about it, until its result's picked up or it's been finished for
+   * a while.
+   */
+  private void track(Job job) {
+
+    jobs.put(job.id, job);
+
+    //nobody's come back for it. Let it go.
+    job.addListener(new Listener() {
+      public void finished(Job job) {
+        final long id = job.id;
+        timer.schedule(new Runnable() {
+          public void run() {
+            jobs.remove(id);
+          }
+        }, RESULT_TTL_MINUTES, TimeUnit.MINUTES);
+      }
+    });
+  }
+
+  /**
+   * @param id id of an async job
+   * @return the job, or null if there's no such job (or it's finished and been forgotten).
+   */
+  Job get(long id) {
+    return jobs.get(id);
+  }
+
+  /**
+   * Forgets an async job. Its result's been picked up.
+   *
+   * @param id id of an async job
+   */
+  void remove(long id) {
+    jobs.remove(id);
+  }
+
+  /**
+   * Cancels an async job.
+   *
+   * @param id id of an async job
+   * @return true if the job was stopped, false if there's no such job or it had already finished.
+   */
+  boolean cancel(long id) {
+    Job job = jobs.get(id);
+    if (job != null && job.cancel(State.CANCELLED)) {
+      cancelled.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param args json args sent from client
+   * @return true if the compile waits behind interactive ones.
+   */
+  static boolean isBatch(Map args) {
+    return "ADVANCED_OPTIMIZATIONS".equals(args.get("compilation_level"));
+  }
+
+  /**
+   * @return what's queued and running, for the `stats` command.
+   */
+  Map<String, Object> getStats() {
+
+    int interactive = 0;
+    int batch = 0;
+    for (Runnable queued : pool.getQueue().toArray(new Runnable[0])) {
+      if (((Run) queued).batch) {
+        batch++;
+      }else {
+        interactive++;
+      }
+    }
+
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("running", pool.getActiveCount());
+    stats.put("queuedInteractive", interactive);
+    stats.put("queuedBatch", batch);
+    stats.put("asyncJobs", jobs.size());
+    stats.put("coalesced", coalesced.get());
+    stats.put("cancelled", cancelled.get());
+    stats.put("timedOut", timedOut.get());
+    return stats;
+  }
+}
@@ -0,0 +1,206 @@
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Keeps track of what each cached file goog.provide's and goog.require's so a compile can be handed just an entry point
+ * and work out which files it needs (and in what order) without the compiler having to scan every input. The index is
+ * updated one file at a time as FileCache's contents change. Works the same way as closurebuilder.py's DepsTree.
+ */
+class DependencyIndex {
+
+  //same patterns closurebuilder.py uses (see lib/closure-library/closure/bin/build/source.py).
+  private static final Pattern PROVIDE = Pattern.compile("^\\s*goog\\.provide\\(\\s*['\"](.+)['\"]\\s*\\)", Pattern.MULTILINE);
+  private static final Pattern REQUIRE = Pattern.compile("^\\s*goog\\.require\\(\\s*['\"](.+)['\"]\\s*\\)", Pattern.MULTILINE);
+
+  //this line identifies base.js. Should match the line in that file.
+  private static final String BASE_LINE = "var goog = goog || {}; // Identifies this file as the Closure base.";
+
+  //entries in the library's deps.js. e.g. goog.addDependency('array/array.js', ['goog.array'], ['goog.asserts']);
+  private static final Pattern ADD_DEPENDENCY = Pattern.compile("goog\\.addDependency\\(\\s*'([^']+)'\\s*,\\s*\\[([^\\]]*)\\]\\s*,\\s*\\[([^\\]]*)\\]");
+  private static final Pattern QUOTED = Pattern.compile("'([^']+)'");
+
+  /**
+   * What a single file provides and requires.
+   */
+  static class Deps {
+    final List<String> provides;
+    final List<String> requires;
+
+    //true if the file is base.js.
+    final boolean base;
+
+    Deps(List<String> provides, List<String> requires, boolean base) {
+      this.provides = provides;
+      this.requires = requires;
+      this.base = base;
+    }
+  }
+
+  //file name -> what it provides/requires
+  private final Map<String, Deps> files = new HashMap<String, Deps>();
+
+  //namespace -> name of the file that provides it
+  private final Map<String, String> providers = new HashMap<String, String>();
+
+  //name of base.js, if we've seen it. Goes first in every resolved list.
+  private String baseFile;
+
+  /**
+   * Works out what a file provides and requires from its contents. Doesn't touch the index, so it can be done before
+   * the file is added to the cache (and without holding any locks).
+   *
+   * @param contents contents of the file
+   * @return what the file provides and requires, ready for update()
+   */
+  static Deps scan(String contents) {
+    return new Deps(match(PROVIDE, contents), match(REQUIRE, contents), contents.contains(BASE_LINE));
+  }
+
+  /**
+   * (Re)indexes a file from its contents. Only the file passed in is touched.
+   *
+   * @param name name the file is cached under
+   * @param contents contents of the file
+   */
+  void update(String name, String contents) {
+    update(name, scan(contents));
+  }
+
+  /**
+   * (Re)indexes a file from what scan() found in it. Only the file passed in is touched.
+   *
+   * @param name name the file is cached under
+   * @param deps what the file provides and requires
+   */
+  synchronized void update(String name, Deps deps) {
+
+    put(name, deps.provides, deps.requires);
+
+    if (deps.base) {
+      baseFile = name;
+    }
+  }
+
+  /**
+   * Indexes every entry in a deps.js file (as written by depswriter.py). Paths in deps.js are relative to base.js,
+   * so they get resolved against the directory base.js is in.
+   *
+   * @param basePath name base.js is (or will be) cached under
+   * @param contents contents of deps.js
+   */
+  synchronized void addDepsFile(String basePath, String contents) {
+
+    Matcher matcher = ADD_DEPENDENCY.matcher(contents);
+    while (matcher.find()) {
+      try {
+
+        //e.g. closure/goog/ + ../../third_party/closure/goog/osapi/osapi.js
+        String name = new URI(basePath).resolve(matcher.group(1)).normalize().getPath();
+
+        //files we already know about from their actual contents take precedence.
+        if (!files.containsKey(name)) {
+          put(name, match(QUOTED, matcher.group(2)), match(QUOTED, matcher.group(3)));
+        }
+
+      }catch(URISyntaxException e){
+        //odd path. Skip it.
+        System.err.print(e);
+      }
+    }
+
+    baseFile = basePath;
+  }
+
+  /**
+   * Forgets about a file.
+   *
+   * @param name name the file is cached under
+   */
+  synchronized void remove(String name) {
+
+    Deps previous = files.remove(name);
+    if (previous != null) {
+      for (String namespace : previous.provides) {
+        if (name.equals(providers.get(namespace))) {
+          providers.remove(namespace);
+        }
+      }
+    }
+
+    if (name.equals(baseFile)) {
+      baseFile = null;
+    }
+  }
+
+  /**
+   * Works out the files needed to compile a set of entry points, ordered so that every file comes after the files
+   * it requires. base.js (if we know about it) is always first.
+   *
+   * @param entryPoints namespaces to compile
+   * @return names of the files to compile, in order
+   * @throws IllegalArgumentException if a namespace isn't provided by any file or there's a circular dependency
+   */
+  synchronized List<String> resolve(List<String> entryPoints) {
+
+    LinkedHashSet<String> ordered = new LinkedHashSet<String>();
+
+    if (baseFile != null) {
+      ordered.add(baseFile);
+    }
+
+    Set<String> visiting = new HashSet<String>();
+    for (String namespace : entryPoints) {
+      visit(namespace, ordered, visiting);
+    }
+
+    return new ArrayList<String>(ordered);
+  }
+
+  /**
+   * Adds the file that provides a namespace to the list, after everything it requires.
+   */
+  private void visit(String namespace, LinkedHashSet<String> ordered, Set<String> visiting) {
+
+    String name = providers.get(namespace);
+    if (name == null) {
+      throw new IllegalArgumentException("Namespace \"" + namespace + "\" is never provided.");
+    }
+
+    //already in there, nothing left to do.
+    if (ordered.contains(name)) {
+      return;
+    }
+
+    if (!visiting.add(name)) {
+      throw new IllegalArgumentException("Circular dependency on \"" + namespace + "\" in " + name);
+    }
+
+    for (String required : files.get(name).requires) {
+      visit(required, ordered, visiting);
+    }
+
+    visiting.remove(name);
+    ordered.add(name);
+  }
+
+  private void put(String name, List<String> provides, List<String> requires) {
+    remove(name);
+    files.put(name, new Deps(provides, requires, false));
+    for (String namespace : provides) {
+      providers.put(namespace, name);
+    }
+  }
+
+  private static List<String> match(Pattern pattern, String contents) {
+    List<String> matches = new ArrayList<String>();
+    Matcher matcher = pattern.matcher(contents);
+    while (matcher.find()) {
+      matches.add(matcher.group(1));
+    }
+    return matches;
+  }
+}
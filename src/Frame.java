@@ -0,0 +1,229 @@
+import java.io.*;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+
+/**
+ * A single message in the binary protocol. Clients that send MAGIC as the very first byte of a connection (followed
+ * by a byte of FLAGS_*) talk in frames instead of plain json for the rest of it. Each frame is:
+ *
+ *   int32 header length | header (UTF-8 json) | int32 payload length | payload (raw bytes)
+ *
+ * Lengths are big endian. The header is the same json object a plain request or response would be, minus the big
+ * strings; those travel as raw bytes in the payload so they never have to be escaped and unescaped. If the header has
+ * `gzip: true` the payload is gzipped.
+ */
+class Frame {
+
+  //never shows up in UTF-8 text, so it can't be mistaken for the start of a json request.
+  static final int MAGIC = 0xFF;
+
+  //set in the byte after MAGIC when the client can handle gzipped payloads in responses.
+  static final int FLAGS_ACCEPT_GZIP = 0x01;
+
+  //headers are small. Anything bigger than this means the client's not speaking our protocol.
+  private static final int MAX_HEADER_LENGTH = 1024 * 1024;
+
+  //most a payload can be, before or after it's gunzipped. Anything bigger would risk running the jvm out of memory.
+  static final int MAX_PAYLOAD_LENGTH = 256 * 1024 * 1024;
+
+  //gunzipped payloads take on more bytes (see Admission) at least this many at a time, so it's not every buffer full.
+  private static final int ADMISSION_STEP = 1024 * 1024;
+
+  //payloads smaller than this aren't worth gzipping.
+  private static final int MIN_GZIP_LENGTH = 1024;
+
+  private static Gson gson = new Gson();
+
+  //parsed json header.
+  final Map<String, Object> header;
+
+  //raw (already gunzipped) payload. Empty if the frame didn't have one, or if it wasn't admitted.
+  final byte[] payload;
+
+  //bytes taken on for this frame (see Admission), to be released once it's been handled. -1 if there wasn't room for
+  //it; its payload was skipped over without being read.
+  final long admitted;
+
+  Frame(Map<String, Object> header, byte[] payload, long admitted) {
+    this.header = header;
+    this.payload = payload;
+    this.admitted = admitted;
+  }
+
+  /**
+   * Reads the next frame off of a connection. The payload's length is checked with admission before the payload is
+   * read, so a frame there's no room for never takes up any memory. A gzipped payload takes on more as it's gunzipped,
+   * and is thrown away if there's no room for all of it.
+   *
+   * @param in the client's stream, positioned at the start of a frame
+   * @param admission decides if there's room for the payload. null to always read it.
+   * @return the frame, or null if the client closed its end of the connection between frames
+   * @throws IOException the connection dropped part way through a frame, the frame doesn't make sense, or its payload
+   *                     is (or gunzips to) more than MAX_PAYLOAD_LENGTH
+   */
+  static Frame read(DataInputStream in, Admission admission) throws IOException {
+
+    //first byte of the header length tells us if there's anything left at all.
+    int first = in.read();
+    if (first == -1) {
+      return null;
+    }
+
+    int headerLength = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+    if (headerLength < 0 || headerLength > MAX_HEADER_LENGTH) {
+      throw new IOException("Bad frame header length: " + headerLength);
+    }
+
+    byte[] headerBytes = new byte[headerLength];
+    in.readFully(headerBytes);
+
+    Map<String, Object> header;
+    try {
+      header = gson.fromJson(new String(headerBytes, "UTF-8"), Map.class);
+    }catch(JsonSyntaxException e){
+      throw new IOException("Bad frame header. " + e);
+    }
+
+    int payloadLength = in.readInt();
+    if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+      throw new IOException("Bad frame payload length: " + payloadLength);
+    }
+
+    //no room. Skip over it so the next frame can be read.
+    if (admission != null && !admission.tryAcquireBytes(payloadLength, 0)) {
+      for (int skipped = 0; skipped < payloadLength; ) {
+        int skip = in.skipBytes(payloadLength - skipped);
+        if (skip <= 0) {
+          throw new EOFException();
+        }
+        skipped += skip;
+      }
+      return new Frame(header, new byte[0], -1);
+    }
+
+    //whatever goes wrong reading it, the bytes taken on for it have to be given back.
+    boolean read = false;
+    try {
+
+      byte[] payload = new byte[payloadLength];
+      in.readFully(payload);
+
+      long admitted = payloadLength;
+      if (header != null && Boolean.TRUE.equals(header.get("gzip"))) {
+
+        payload = gunzip(payload, admission, payloadLength);
+
+        //no room for all of it. What it took on for the gzipped bytes is given back below.
+        if (payload == null) {
+          return new Frame(header, new byte[0], -1);
+        }
+
+        admitted = Math.max(payloadLength, payload.length);
+      }
+
+      read = true;
+      return new Frame(header, payload, admission != null ? admitted : 0);
+
+    }finally{
+      if (!read && admission != null) {
+        admission.releaseBytes(payloadLength);
+      }
+    }
+  }
+
+  /**
+   * Writes a frame out. The payload is gzipped (and the header marked as such) if gzip is true and it's big enough
+   * for that to pay off. Doesn't flush.
+   *
+   * @param out the client's stream
+   * @param header json header. `gzip` is set on it if the payload ends up gzipped.
+   * @param payload raw payload. Can be empty.
+   * @param gzip true if the client said it can handle gzipped payloads
+   * @throws IOException client went away
+   */
+  static void write(DataOutputStream out, Map<String, Object> header, byte[] payload, boolean gzip) throws IOException {
+
+    if (gzip && payload.length >= MIN_GZIP_LENGTH) {
+      payload = gzip(payload);
+      header.put("gzip", true);
+    }
+
+    byte[] headerBytes = gson.toJson(header).getBytes("UTF-8");
+
+    out.writeInt(headerBytes.length);
+    out.write(headerBytes);
+    out.writeInt(payload.length);
+    out.write(payload);
+  }
+
+  /**
+   * @param admission takes on bytes as the payload inflates, past what's already been taken on for it. null to not
+   *                  bother.
+   * @param held bytes already taken on for the payload
+   * @return the gunzipped payload, or null if admission ran out of room for it. Exactly max(held, its length) bytes
+   *         are taken on for it once it's returned; nothing more than held if it isn't.
+   * @throws IOException not gzipped, or it gunzips to more than MAX_PAYLOAD_LENGTH (e.g. a gzip bomb)
+   */
+  private static byte[] gunzip(byte[] compressed, Admission admission, long held) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+
+    //taken on past held as it inflated.
+    long extra = 0;
+    boolean done = false;
+    try {
+
+      //text usually compresses 3-5x. Start somewhere around there.
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(compressed.length * 4L, MAX_PAYLOAD_LENGTH));
+      byte[] buffer = new byte[8192];
+      for (int read; (read = in.read(buffer)) != -1; ) {
+
+        if (bytes.size() + read > MAX_PAYLOAD_LENGTH) {
+          throw new IOException("Frame payload gunzips to more than " + MAX_PAYLOAD_LENGTH + " bytes.");
+        }
+
+        //make room before holding on to it.
+        long needed = bytes.size() + read - held - extra;
+        if (needed > 0 && admission != null) {
+
+          //a step at a time, without going past what a single request can have.
+          needed = Math.max(needed, Math.min(ADMISSION_STEP, admission.maxRequestBytes() - held - extra));
+          if (!admission.tryAcquireBytes(needed, held + extra)) {
+            return null;
+          }
+          extra += needed;
+        }
+
+        bytes.write(buffer, 0, read);
+      }
+
+      //give back whatever the last step took on that it didn't need.
+      long unused = held + extra - Math.max(held, bytes.size());
+      if (unused > 0) {
+        admission.releaseBytes(unused);
+        extra -= unused;
+      }
+
+      done = true;
+      return bytes.toByteArray();
+
+    }finally{
+      in.close();
+      if (!done && extra > 0) {
+        admission.releaseBytes(extra);
+      }
+    }
+  }
+
+  private static byte[] gzip(byte[] raw) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 4);
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(raw);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
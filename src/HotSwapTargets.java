@@ -0,0 +1,168 @@
+import java.util.*;
+
+import com.google.javascript.jscomp.*;
+import com.google.javascript.jscomp.Compiler;
+
+
+/**
+ * Keeps compilers around after they're done so the next `incremental` compile of the same target (same js list, same
+ * args) only has to swap in the files that changed instead of compiling everything from scratch. Swapping goes
+ * through Compiler.replaceScript, which re-parses just the changed file and re-runs the HotSwapCompilerPass passes
+ * over it.
+ *
+ * Only WHITESPACE_ONLY and SIMPLE_OPTIMIZATIONS targets are swapped. ADVANCED_OPTIMIZATIONS renames and strips code
+ * across files, so a swapped file wouldn't line up with the rest of the output. The same goes for
+ * manage_closure_dependencies, since a changed goog.require can change which files belong in the output at all.
+ * Swapped files are checked but not optimized, so they'll come out bigger than they would from a full compile.
+ */
+class HotSwapTargets {
+
+  /**
+   * A compile that's being kept live.
+   */
+  private static class Target {
+
+    //compiler from the last full compile. Holds the compiled AST that files get swapped in to. null until the
+    //first clean compile.
+    Compiler compiler;
+
+    //digest of each input (in order) as of the last compile or swap.
+    List<String> digests;
+
+    //output of the last compile or swap.
+    String source;
+  }
+
+  //live targets, least recently used first.
+  private final LinkedHashMap<String, Target> targets;
+
+  /**
+   * @param maxTargets how many targets to keep live. Each holds on to a whole compiled AST, so keep this small.
+   */
+  HotSwapTargets(final int maxTargets) {
+    targets = new LinkedHashMap<String, Target>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Target> eldest) {
+        return size() > maxTargets;
+      }
+    };
+  }
+
+  /**
+   * Compiles a target. If it's been compiled before, only the files that have changed since get swapped in.
+   *
+   * @param snapshot the target's js files and externs, as of when the compile was asked for. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @return the compiled source
+   */
+  String compile(FileCache.Snapshot snapshot, Map args) {
+
+    //the js list is part of the args, so this covers the whole target.
+    String key = TCPServer.argsKey(args);
+
+    Target target;
+    synchronized (targets) {
+      target = targets.get(key);
+      if (target == null) {
+        target = new Target();
+        targets.put(key, target);
+      }
+    }
+
+    //compiles of different targets can run side by side, but a target's compiler can only do one thing at a time.
+    synchronized (target) {
+
+      List<String> files = (List<String>) args.get("js");
+      if (files == null) {
+        files = Collections.emptyList();
+      }
+
+      //what each input looks like now.
+      List<String> digests = new ArrayList<String>();
+      for (String path : files) {
+        digests.add(snapshot.getDigest(path));
+      }
+
+      boolean swappable = isSwappable(args);
+
+      if (target.compiler != null && swappable) {
+        if (swap(target, snapshot, files, digests)) {
+          return target.source;
+        }
+      }
+
+      //first time, or swapping wasn't an option. Compile it all.
+      Compiler compiler = TCPServer.compile(snapshot, args);
+      String source = compiler.toSource();
+
+      //only keep clean compiles live, and only for targets we'd ever swap in to. A compiler holds the whole AST and
+      //type registry, so there's no point pinning it for (say) an ADVANCED build.
+      target.compiler = swappable && compiler.getResult().success ? compiler : null;
+      target.digests = digests;
+      target.source = source;
+
+      return source;
+    }
+  }
+
+  /**
+   * Swaps the files that have changed in to the target's compiler.
+   *
+   * @param target the target to update. Caller has to hold its lock.
+   * @param snapshot the target's js files, as of when the compile was asked for
+   * @param files the target's js list
+   * @param digests digest of each file in the js list, from the snapshot
+   * @return true if the target is up to date, false if it needs a full compile.
+   */
+  private boolean swap(Target target, FileCache.Snapshot snapshot, List<String> files, List<String> digests) {
+
+    for (int i = 0; i < files.size(); i++) {
+
+      String previous = target.digests.get(i);
+      String current = digests.get(i);
+
+      if (current == null || previous == null) {
+        //file went missing or just showed up. The compiler doesn't have an input we can swap it in to.
+        return false;
+      }
+
+      if (!current.equals(previous)) {
+        try {
+
+          //re-parses the file and runs the hot swap passes over it. The name matches the input we compiled, so the
+          //compiler knows which one to replace.
+          target.compiler.replaceScript(new JsAst(snapshot.getJSSourceFile(files.get(i))));
+
+        }catch(RuntimeException e){
+
+          //couldn't swap it. A full compile will sort it out.
+          e.printStackTrace(System.err);
+          return false;
+
+        }
+      }
+    }
+
+    //if the new version has errors, a full compile will report them properly.
+    if (!target.compiler.getResult().success) {
+      return false;
+    }
+
+    //nothing changed? Then the last output's still good.
+    if (!digests.equals(target.digests)) {
+      target.source = target.compiler.toSource();
+      target.digests = digests;
+    }
+
+    return true;
+  }
+
+  /**
+   * @param args json args sent from client
+   * @return true if swapping a single file in to a compiled target keeps the output correct.
+   */
+  private static boolean isSwappable(Map args) {
+    return !"ADVANCED_OPTIMIZATIONS".equals(args.get("compilation_level"))
+        && !args.containsKey("manage_closure_dependencies");
+  }
+}
@@ -0,0 +1,90 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Least recently used cache of compiled output. Keys should describe everything that went in to the compile (see
+ * TCPServer.compileKey) so a hit can be handed back without running the compiler at all. The cache is bounded by the
+ * total size of the output it's holding on to; the least recently used output is thrown out first.
+ */
+class OutputCache {
+
+  //most recently used last. Access ordered so get() counts as a use.
+  private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+  //upper bound on the number of chars held, summed over every cached output.
+  private final long maxChars;
+
+  //number of chars currently held.
+  private long chars = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxBytes roughly how much memory the cached output is allowed to take up. Strings are 2 bytes a char.
+   */
+  OutputCache(long maxBytes) {
+    this.maxChars = maxBytes / 2;
+  }
+
+  /**
+   * @param key describes the compile
+   * @return the output of an earlier compile with the same key, or null if there isn't one cached.
+   */
+  synchronized String get(String key) {
+    String output = entries.get(key);
+    if (output != null) {
+      hits.incrementAndGet();
+    }else {
+      misses.incrementAndGet();
+    }
+    return output;
+  }
+
+  /**
+   * Caches the output of a compile, making room for it if need be. Output bigger than the whole cache isn't kept.
+   *
+   * @param key describes the compile
+   * @param output what the compiler gave back
+   */
+  synchronized void put(String key, String output) {
+    if (output.length() > maxChars) {
+      return;
+    }
+
+    String previous = entries.put(key, output);
+    if (previous != null) {
+      chars -= previous.length();
+    }
+    chars += output.length();
+
+    //oldest first, so just keep throwing out the first one until we fit.
+    Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+    while (chars > maxChars && it.hasNext()) {
+      chars -= it.next().getValue().length();
+      it.remove();
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return roughly how much memory the cached output is taking up, in bytes.
+   */
+  synchronized long sizeInBytes() {
+    return chars * 2;
+  }
+}
@@ -0,0 +1,200 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counters and latency histograms for each command, plus how long each compiler pass has taken (when the compiler's
+ * tracer is turned on). Recording is just a few atomic increments, so it's cheap enough to leave on all the time.
+ */
+class Stats {
+
+  //latencies are bucketed by powers of two (in microseconds). Bucket i holds anything under 2^i us; the last one
+  //holds everything bigger (over 2^40 us is about 12 days, so nothing should land there).
+  private static final int BUCKETS = 41;
+
+  /**
+   * Latency histogram for a single command.
+   */
+  private static class Histogram {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+    final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos, boolean ok) {
+      count.incrementAndGet();
+      if (!ok) {
+        errors.incrementAndGet();
+      }
+      totalNanos.addAndGet(nanos);
+
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        //someone else got there first. Try again.
+      }
+
+      //number of bits in the latency (in us) is the power of two just above it.
+      int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+      buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return upper bound (in ms) of the bucket the percentile falls in, or the slowest time recorded if that's lower
+     */
+    double percentile(long total, double fraction) {
+      long target = (long) Math.ceil(total * fraction);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= target) {
+          return Math.min((1L << i) / 1000.0, maxNanos.get() / 1000000.0);
+        }
+      }
+      return maxNanos.get() / 1000000.0;
+    }
+
+    Map<String, Object> snapshot() {
+      Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+      long total = count.get();
+      snapshot.put("count", total);
+      snapshot.put("errors", errors.get());
+      snapshot.put("meanMs", total > 0 ? totalNanos.get() / 1000000.0 / total : 0);
+      snapshot.put("p50Ms", total > 0 ? percentile(total, 0.5) : 0);
+      snapshot.put("p99Ms", total > 0 ? percentile(total, 0.99) : 0);
+      snapshot.put("maxMs", maxNanos.get() / 1000000.0);
+      return snapshot;
+    }
+  }
+
+  /**
+   * Time spent in a single compiler pass, summed over every traced compile.
+   */
+  private static class PassTiming {
+    final AtomicLong compiles = new AtomicLong();
+    final AtomicLong runs = new AtomicLong();
+    final AtomicLong totalMs = new AtomicLong();
+  }
+
+  //command name -> histogram.
+  private final ConcurrentMap<String, Histogram> commands = new ConcurrentHashMap<String, Histogram>();
+
+  //compiler pass name -> timing.
+  private final ConcurrentMap<String, PassTiming> passes = new ConcurrentHashMap<String, PassTiming>();
+
+  //when we started counting.
+  private final long started = System.currentTimeMillis();
+
+  /**
+   * Records a command that's been answered.
+   *
+   * @param cmd the command
+   * @param startNanos System.nanoTime() from when the request was read
+   * @param ok false if the client got back an ERROR
+   */
+  void record(String cmd, long startNanos, boolean ok) {
+    Histogram histogram = commands.get(cmd);
+    if (histogram == null) {
+      commands.putIfAbsent(cmd, new Histogram());
+      histogram = commands.get(cmd);
+    }
+    histogram.record(System.nanoTime() - startNanos, ok);
+  }
+
+  /**
+   * @param cmd the command
+   * @return how long the command has taken on average, in ms. 0 if it hasn't been recorded yet.
+   */
+  double meanMillis(String cmd) {
+    Histogram histogram = commands.get(cmd);
+    if (histogram == null || histogram.count.get() == 0) {
+      return 0;
+    }
+    return histogram.totalNanos.get() / 1000000.0 / histogram.count.get();
+  }
+
+  /**
+   * Pulls per pass timings out of the report the compiler prints when its tracer is on (CompilerOptions.tracer). The
+   * report's "Summary:" section is a csv of pass,runtime,runs,changingRuns,reduction,gzReduction with runtime in ms.
+   * Anything in the output that isn't part of the report (errors, warnings) is passed along to stderr.
+   *
+   * @param output everything the compiler printed
+   */
+  void recordPasses(String output) {
+
+    //what part of the report we're in. The line after each section name is the csv header.
+    boolean summary = false;
+    boolean log = false;
+    boolean header = false;
+
+    for (String line : output.split("\r?\n")) {
+
+      if (line.equals("Summary:")) {
+        summary = header = true;
+      }else if (line.equals("Log:")) {
+        log = header = true;
+      }else if (header) {
+        header = false;
+      }else if (line.length() == 0) {
+        summary = log = false;
+      }else if (summary) {
+
+        String[] columns = line.split(",");
+        if (columns.length < 3) {
+          continue;
+        }
+
+        PassTiming timing = passes.get(columns[0]);
+        if (timing == null) {
+          passes.putIfAbsent(columns[0], new PassTiming());
+          timing = passes.get(columns[0]);
+        }
+
+        try {
+          timing.totalMs.addAndGet(Long.parseLong(columns[1].trim()));
+          timing.runs.addAndGet(Long.parseLong(columns[2].trim()));
+          timing.compiles.incrementAndGet();
+        }catch(NumberFormatException e){
+          //not a line we understand. Skip it.
+        }
+
+      }else if (!log) {
+        System.err.println(line);
+      }
+    }
+  }
+
+  /**
+   * @return the command histograms and pass timings, ready to be turned in to json.
+   */
+  Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+
+    snapshot.put("uptimeMs", System.currentTimeMillis() - started);
+
+    Map<String, Object> byCommand = new TreeMap<String, Object>();
+    for (Map.Entry<String, Histogram> entry : commands.entrySet()) {
+      byCommand.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    snapshot.put("commands", byCommand);
+
+    //only there if the tracer's on.
+    if (!passes.isEmpty()) {
+      Map<String, Object> byPass = new TreeMap<String, Object>();
+      for (Map.Entry<String, PassTiming> entry : passes.entrySet()) {
+        Map<String, Object> timing = new LinkedHashMap<String, Object>();
+        timing.put("compiles", entry.getValue().compiles.get());
+        timing.put("runs", entry.getValue().runs.get());
+        timing.put("totalMs", entry.getValue().totalMs.get());
+        byPass.put(entry.getKey(), timing);
+      }
+      snapshot.put("passes", byPass);
+    }
+
+    return snapshot;
+  }
+}
@@ -1,26 +1,62 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.google.gson.JsonSyntaxException;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.CmdLineException;
 import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
 import com.google.common.io.LimitInputStream;
 import com.google.javascript.jscomp.*;
 import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.rhino.Node;
+
+import static java.nio.file.StandardWatchEventKinds.*;
 
 
 /**
  * Sets up a TCP socket listener and handles various commands sent as JSON.
- * Commands are: echo, addFile, addFiles, getFiles, and compile.
+ * Commands are: echo, addFile, addFiles, getFiles, sync, stats, compile, compileBatch, status, result and cancel. Clients can also talk in length-prefixed frames
+ * instead (see Frame).
  * After files local to the client have been added (via addFile(s)), the client will issue a compile command
  * and pass in args generally associated with the same args used with the ClosureCompiler
  * jar (see: http://code.google.com/closure/compiler/docs/api-tutorial3.html)
@@ -37,19 +73,308 @@ class TCPServer {
     @Option(name = "-p", aliases = "--port", metaVar = "number", usage = "Sets the port to listen on.")
     Integer port = 7990;
 
-    @Option(name = "--include-closure", usage = "True (default) preloads the entire Closure Library on start up. However, false doesn't.")
+    @Option(name = "--include-closure", usage = "True (default) makes the entire Closure Library available. Files are read from the jar the first time they're used. However, false doesn't.")
     boolean loadClosureLibrary = true;
 
-    @Option(name = "-v", aliases = "--verbose", usage = "Will toggle verbosity of messages sent to stdout. Currently does nothing.")
+    @Option(name = "-v", aliases = "--verbose", usage = "Prints every command and every file added to stdout.")
     boolean isVerbose = false;
+
+    @Option(name = "-t", aliases = "--compile-threads", metaVar = "number", usage = "Sets how many compiles can run at the same time. Defaults to the number of available processors.")
+    Integer compileThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--compile-timeout", metaVar = "seconds", usage = "Sets how long a compile gets (from when it's asked for) before the client's told it timed out. Compiles can ask for less with `timeout`. 0 (default) means there's no limit.")
+    Integer compileTimeout = 0;
+
+    @Option(name = "--max-compiles", metaVar = "number", usage = "Sets how many compiles are taken on at once (running plus waiting for a compile thread). Past that, and whenever the heap's less than 15% free, compiles get an OVERLOADED error. 0 (default) means 4 per compile thread.")
+    Integer maxCompiles = 0;
+
+    @Option(name = "--max-request-mb", metaVar = "number", usage = "Sets how much request data (in megabytes) can be read or handled at once, and how big a single request can be. Past that, or past half of what's free on the heap, requests get an OVERLOADED error. 0 (default) means a quarter of the heap.")
+    Integer maxRequestMegabytes = 0;
+
+    @Option(name = "--file-cache-mb", metaVar = "number", usage = "Sets how much file contents (in megabytes) are kept around. Only the contents count, not the ASTs parsed from them. The least recently used files are evicted first; Closure Library files and files read from disk are read again if they're needed, anything else has to be sent again. 0 means there's no limit. Defaults to 256.")
+    Integer fileCacheMegabytes = 256;
+
+    @Option(name = "--output-cache-mb", metaVar = "number", usage = "Sets how much compiled output (in megabytes) is kept around for repeat compiles. 0 turns the cache off. Defaults to 64.")
+    Integer outputCacheMegabytes = 64;
+
+    @Option(name = "--hot-swap-targets", metaVar = "number", usage = "Sets how many `incremental` compile targets are kept live. Each one holds on to its compiled AST. 0 turns incremental compiles off. Defaults to 8.")
+    Integer hotSwapTargets = 8;
+
+    @Option(name = "--watch", usage = "Watches files read from disk (added via `path`) and re-reads them in the background whenever they change, so clients don't need to send `reload`.")
+    boolean watchFiles = false;
+
+    @Option(name = "--trace-passes", usage = "Times every compiler pass (with the compiler's tracer) and adds the totals to `stats`. Slows compiles down a little.")
+    boolean tracePasses = false;
+
+    @Option(name = "--stats-interval", metaVar = "seconds", usage = "Prints `stats` to stdout every so many seconds. 0 (default) turns this off.")
+    Integer statsInterval = 0;
+  }
+
+  /**
+   * A single client connection. Many requests can come in over the same connection and their responses can go back
+   * out in any order, so writes back to the client are serialized here and we keep count of the requests still in flight.
+   */
+  static class Connection {
+
+    //stream to send data back to connectee. Responses are encoded as UTF-8 straight in to the buffer. null if the
+    //client is talking in frames.
+    private final Writer out;
+
+    //stream to send frames back to the connectee. null if the client is talking plain json.
+    private final DataOutputStream frames;
+
+    //client said it can handle gzipped frame payloads.
+    private final boolean gzip;
+
+    //stream requests are read from. Counts what's been read, so we know how big each request is.
+    private final CountingInputStream in;
+
+    //number of requests that have been read but not answered yet.
+    private int pending = 0;
+
+    //bytes read before the request being read now started, and bytes taken on for it so far (see Admission). Only
+    //touched by the thread reading requests.
+    private long requestStart = 0;
+    private long admitted = 0;
+
+    //responses to compiles, waiting to be written in the order they finished. Written one at a time on writerPool, so
+    //a client that stops reading only holds up its own responses, not the compile thread (or the other clients
+    //waiting on the same compile). writing is true while a writer thread is working through them.
+    private final Queue<Runnable> writes = new ArrayDeque<Runnable>();
+    private boolean writing = false;
+
+    /**
+     * Where listeners that answer this client run. See CompileJobs.Job.addListener.
+     */
+    final Executor writer = new Executor() {
+      public void execute(Runnable write) {
+        synchronized (writes) {
+          writes.add(write);
+          if (writing) {
+            return;
+          }
+          writing = true;
+        }
+        writerPool.execute(drain);
+      }
+    };
+
+    //works through writes until there aren't any left.
+    private final Runnable drain = new Runnable() {
+      public void run() {
+        while (true) {
+
+          Runnable write;
+          synchronized (writes) {
+            write = writes.poll();
+            if (write == null) {
+              writing = false;
+              return;
+            }
+          }
+
+          try {
+
+            write.run();
+
+          }catch(RuntimeException e){
+
+            //don't leave the rest of the responses stuck behind it.
+            e.printStackTrace(System.err);
+
+          }
+        }
+      }
+    };
+
+    /**
+     * @param socket the client connection
+     * @param in the stream requests are read from
+     * @param binary true if the client asked to talk in frames (see Frame)
+     * @param gzip true if the client can handle gzipped frame payloads. Ignored unless binary is true.
+     * @throws IOException couldn't get at the socket's output stream
+     */
+    Connection(Socket socket, CountingInputStream in, boolean binary, boolean gzip) throws IOException {
+      OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), RESPONSE_BUFFER_SIZE);
+      if (binary) {
+        out = null;
+        frames = new DataOutputStream(stream);
+      }else {
+        out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), RESPONSE_BUFFER_SIZE);
+        frames = null;
+      }
+      this.gzip = gzip;
+      this.in = in;
+    }
+
+    /**
+     * @return bytes read from the client so far. Only to be called from the thread reading requests.
+     */
+    long getBytesRead() {
+      return in.getCount();
+    }
+
+    /**
+     * Marks the start of the next request. Call releaseRequest once the last one's been handled.
+     */
+    void startRequest() {
+      requestStart = in.getCount();
+    }
+
+    /**
+     * Takes on (see Admission) everything read of the current request so far.
+     *
+     * @return false if there's no room for it
+     */
+    boolean admitRequest() {
+
+      //roughly what it takes up; the reader reads ahead a little.
+      long read = in.getCount() - requestStart;
+      if (read > admitted && !admission.tryAcquireBytes(read - admitted, admitted)) {
+        return false;
+      }
+
+      admitted = Math.max(admitted, read);
+      return true;
+    }
+
+    /**
+     * Gives back what the current request took on.
+     */
+    void releaseRequest() {
+      admission.releaseBytes(admitted);
+      admitted = 0;
+    }
+
+    /**
+     * Gives back what the current request has taken on so far and counts the rest of it as if it were starting now.
+     * For streamed addFiles, once what's been read has gone in to the cache (where --file-cache-mb looks after it).
+     */
+    void restartRequest() {
+      releaseRequest();
+      startRequest();
+    }
+
+    /**
+     * @throws IOException more of the current request has been read than any request is allowed to take up.
+     */
+    void checkRequestLength() throws IOException {
+      if (in.getCount() - requestStart > admission.maxRequestBytes()) {
+        throw new IOException("Request is bigger than " + admission.maxRequestBytes() + " bytes.");
+      }
+    }
+
+    /**
+     * Sends a response back to the client. Synchronized so responses from different threads don't get mixed together.
+     *
+     * @param id the `id` of the request being answered. Can be null.
+     * @param msg the result to send back.
+     */
+    synchronized void send(Object id, Object msg) {
+      send(id, null, msg);
+    }
+
+    /**
+     * Sends the response for one target of a compileBatch back to the client.
+     *
+     * @param id the `id` of the request being answered. Can be null.
+     * @param target index of the target (in the request's `targets`) being answered. Can be null.
+     * @param msg the result to send back.
+     */
+    synchronized void send(Object id, Integer target, Object msg) {
+      if (frames != null) {
+        TCPServer.sendFrame(id, target, msg, frames, gzip);
+      }else {
+        TCPServer.send(id, target, msg, out);
+      }
+    }
+
+    /**
+     * Marks a request as being answered later (from another thread).
+     */
+    synchronized void begin() {
+      pending++;
+    }
+
+    /**
+     * Marks a request started with begin() as answered.
+     */
+    synchronized void finish() {
+      pending--;
+      notifyAll();
+    }
+
+    /**
+     * Blocks until every request started with begin() has been answered.
+     *
+     * @throws InterruptedException we're being shut down
+     */
+    synchronized void awaitPending() throws InterruptedException {
+      while (pending > 0) {
+        wait();
+      }
+    }
   }
 
   //instance of Google's Gson to handle the parse and creating of json objects.
-  private static Gson gson = new Gson();
+  //nothing we send ends up in html, so there's no need to escape <, >, = etc. (compiled source is full of them).
+  private static Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+  //size of the buffer responses are written through. Big responses get flushed out a buffer at a time.
+  private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+  //a streamed addFiles goes in to the cache whenever it's got this many bytes of contents waiting, so a big sync only
+  //ever holds about this much of itself. Unless the client asks for it `atomic`.
+  private static final long STREAMED_COMMIT_BYTES = 4 * 1024 * 1024;
+
+  //runs the compiles, interactive ones first. Sized by Options.compileThreads so we don't have more compiles going than
+  //we've got cores for.
+  static CompileJobs compileJobs;
+
+  //prints the output of each module of a compile side by side, and compiles per_file compiles' files side by side.
+  //Separate from the compile pool since compiles wait on it.
+  private static final ExecutorService outputPool = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          //don't keep the jvm alive on our account.
+          Thread thread = new Thread(runnable, "TCPServer-output");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  //writes compile responses back to clients (see Connection.writer). Grows with the number of clients being written
+  //to at once, since a client that's slow to read keeps its thread until it catches up.
+  private static final ExecutorService writerPool = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      //don't keep the jvm alive on our account.
+      Thread thread = new Thread(runnable, "TCPServer-writer");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  //output of earlier compiles, keyed by their inputs, externs and args. null if turned off.
+  static OutputCache outputCache;
+
+  //compilers kept around for `incremental` compiles. null if turned off.
+  static HotSwapTargets hotSwapTargets;
+
+  //latency of every command, and how long compiler passes take (if tracePasses is on).
+  static final Stats stats = new Stats();
+
+  //print every command to stdout. See Options.isVerbose.
+  private static boolean verbose = false;
+
+  //run the compiler's tracer on every compile. See Options.tracePasses.
+  private static boolean tracePasses = false;
+
+  //turns compiles and requests away when there's no room for them.
+  static Admission admission;
 
   /**
    * main method used to start ClosureCompilerService. This method will parse cmdline args, setup a listener on the tcp socket,
-   * initialize the file cache, and parse client requests.
+   * initialize the file cache, and hand off each client connection to its own thread.
    * @param argv see Options
    * @throws Exception probably an IOExcept from ServerSocket or FileCache
    */
@@ -76,601 +401,2844 @@ class TCPServer {
     //setup a listener to handle incoming TCP requests.
     ServerSocket server = new ServerSocket(options.port);
 
-    //will potentially preload the entire Closure Library from within itself (lib/closure-library/) and handle the caching of files as JSSourceFiles.
-    FileCache fileCache = new FileCache(options.loadClosureLibrary);
+    //will potentially index the entire Closure Library from within itself (lib/closure-library/) and handle the caching of files as JSSourceFiles.
+    final FileCache fileCache = new FileCache(options.loadClosureLibrary, options.fileCacheMegabytes * 1024L * 1024L);
 
+    //printing every command and file is slow under load, so it's only done when asked for.
+    verbose = options.isVerbose;
+    fileCache.setVerbose(options.isVerbose);
+    tracePasses = options.tracePasses;
 
-    //used to indicate that service has started to anyone listening to the stdout stream.
-    System.out.println("ClosureCompilerService has STARTED.");
+    //keep files that were read from disk fresh without the client having to ask.
+    if (options.watchFiles) {
+      fileCache.startWatching();
+    }
 
+    //only so many compiles (and only so much request data) are taken on at once.
+    admission = new Admission(Math.max(1, options.compileThreads), options.maxCompiles, options.maxRequestMegabytes * 1024L * 1024L, stats);
 
-    while(true) {
+    //compiles are cpu bound so they get their own pool, capped at the concurrency limit.
+    compileJobs = new CompileJobs(Math.max(1, options.compileThreads), options.compileTimeout * 1000L, admission);
 
-      //we've got a connection
-      Socket connectionSocket = server.accept();
+    //repeat compiles of unchanged files get handed the last output straight away.
+    if (options.outputCacheMegabytes > 0) {
+      outputCache = new OutputCache(options.outputCacheMegabytes * 1024L * 1024L);
+    }
 
-      //no buffer, send stuff as soon as we've got it.
-      connectionSocket.setTcpNoDelay(true);
+    //live compiles for clients that only change a file or two between compiles.
+    if (options.hotSwapTargets > 0) {
+      hotSwapTargets = new HotSwapTargets(options.hotSwapTargets);
+    }
 
-      //stream to send data back to connectee
-      DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+    //dump the stats every so often for anyone watching stdout.
+    if (options.statsInterval > 0) {
+      ScheduledExecutorService statsTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          //don't keep the jvm alive on our account.
+          Thread thread = new Thread(runnable, "TCPServer-stats");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      statsTimer.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          System.out.println("STATS: " + gson.toJson(getStats(fileCache)));
+        }
+      }, options.statsInterval, options.statsInterval, TimeUnit.SECONDS);
+    }
 
-      //read the incoming stream as json
-      JsonReader inFromClient = new JsonReader(new InputStreamReader(connectionSocket.getInputStream(), "UTF-8"));
+    //every connection gets its own thread so cheap commands (echo, addFile(s), etc.) never wait behind a compile.
+    ExecutorService connectionPool = Executors.newCachedThreadPool();
 
-      //by default we won't adhere strictly to the json standard/spec
-      inFromClient.setLenient(true);
 
-      //map containing parsed json
-      Map<String, Object> json = null;
+    //used to indicate that service has started to anyone listening to the stdout stream.
+    System.out.println("ClosureCompilerService has STARTED.");
 
-      try {
 
-        //parse the input from the tcp connection
-        json = gson.fromJson(inFromClient, Map.class);
+    while(true) {
 
-      }catch(JsonSyntaxException e){
+      //we've got a connection
+      final Socket connectionSocket = server.accept();
 
-        //coulnd't parse it. Maybe the stream wasn't finished yet? Maybe it was just a bad string?
-        System.err.print("Tried to parse invalid json string. " + e);
+      //no buffer, send stuff as soon as we've got it.
+      connectionSocket.setTcpNoDelay(true);
 
-      }
+      //hand it off and get right back to accepting.
+      connectionPool.execute(new Runnable() {
+        public void run() {
+          handleConnection(connectionSocket, fileCache);
+        }
+      });
+    }
+  }
 
-      //if it's real json AND it's got a cmd then we're in business
-      if (json != null && json.containsKey("cmd")) {
 
-        //what are we going to do.
-        String cmd = (String) json.get("cmd");
+  /**
+   * Reads json requests off of the client connection until the client is done sending, handles each one and sends back
+   * its response. Runs on a connection thread. Cheap commands are answered right away, in order; compiles are handed
+   * off to the compile pool and answered whenever they finish, so clients should pass an `id` with each request and
+   * match it up with the `id` in the response.
+   *
+   * @param connectionSocket the accepted client connection. Will be closed once every response has been sent.
+   * @param fileCache reference to FileCache so we can add and grab cached JSSource files
+   */
+  private static void handleConnection(Socket connectionSocket, FileCache fileCache) {
+    try {
 
-        System.out.println("CMD: " + cmd);
+      //counts what's read, so we know how much memory requests are taking up.
+      CountingInputStream counter = new CountingInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
 
-        if (cmd.equals("compile") && json.get("args") != null){
+      //one byte of push back so we can peek at how the client wants to talk.
+      PushbackInputStream in = new PushbackInputStream(counter, 1);
 
-          //pass the `args` received in the json object down to handleCompileWithArgs to be chop-suey'd in to the Closure Compiler.
-          String results = handleCompileWithArgs(fileCache, (Map)json.get("args"));
+      int first = in.read();
+      if (first == Frame.MAGIC) {
 
-          //Closure Compiler sent us back something, pass it to the client.
-          send(results, outToClient);
+        //client wants to talk in frames. Next byte says what else it can handle.
+        int flags = in.read();
+        Connection connection = new Connection(connectionSocket, counter, true, flags != -1 && (flags & Frame.FLAGS_ACCEPT_GZIP) != 0);
 
-        }else if (cmd.equals("echo") && json.containsKey("msg")){
+        handleFrames(new DataInputStream(in), connection, fileCache);
 
-          //I'm made of rubber, you're glue. Simple way for client to check if I'm alive.
-          send(json.get("msg").toString(), outToClient);
+        //don't hang up on any compiles that are still running.
+        connection.awaitPending();
+        return;
+      }
 
-        }else if (cmd.equals("getFiles")){
+      //plain old json. Put the byte back for the json reader.
+      if (first != -1) {
+        in.unread(first);
+      }
 
-          //shortcut for client to check what files we have cached. They can either update files or not pass files in their addFile(s) call.
-          send(gson.toJson(fileCache.contentCache.keySet()), outToClient);
+      //keeps track of the stream back to the client and any requests still in flight.
+      final Connection connection = new Connection(connectionSocket, counter, false, false);
 
-        }else if (cmd.equals("addFile") && json.containsKey("file")){
+      //requests are turned away as they're read once there's no room for them (see readRequest), but one huge json
+      //string would still be read in whole before we found out. So nothing's read past the most any request can have.
+      InputStream limited = new FilterInputStream(in) {
+        public int read() throws IOException {
+          connection.checkRequestLength();
+          return super.read();
+        }
 
-          //file object. wil contain contents and name or path.
-          Map obj = (Map)json.get("file");
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          connection.checkRequestLength();
+          return super.read(buffer, offset, length);
+        }
+      };
 
-          if (obj.containsKey("contents") && obj.containsKey("name")){
+      //read the incoming stream as json
+      JsonReader inFromClient = new JsonReader(new InputStreamReader(limited, "UTF-8"));
 
-            //it's a named file, so, just stuff the contents in to the cache. Client will handle updating contents
-            fileCache.addFile((String)obj.get("name"), (String) obj.get("contents"));
+      //by default we won't adhere strictly to the json standard/spec. This also lets the client send as many json
+      //objects as it likes, one after another, on the same connection.
+      inFromClient.setLenient(true);
 
-          }else if (obj.containsKey("path")){
+      try {
 
-            //if reload is true then we'll pull file from disk even if it's cached.
-            boolean reload = true;
-            if (obj.containsKey("reload")){
-              reload = ((Boolean) obj.get("reload")).booleanValue();
-            }
+        //keep going until the client closes its end of the connection.
+        while (inFromClient.peek() != JsonToken.END_DOCUMENT) {
 
-            if (reload || (!reload && !fileCache.isCached((String)obj.get("path")))) {
+          try {
 
-              //we'll handle reading the contents from disk and passing it to Closure Compiler
-              fileCache.addFile((String)obj.get("path"));
+            //parse the next request from the tcp connection. Big addFiles requests (and anything there's no room for)
+            //are handled as they're read.
+            Map<String, Object> json = readRequest(inFromClient, connection, fileCache);
 
+            if (json != null) {
+              handleRequest(json, connection, fileCache);
             }
 
+          }finally{
+            connection.releaseRequest();
           }
 
-          //welp, if we made it this far then we're ok. Right?
-          send("OK", outToClient);
+        }
 
-        }else if (cmd.equals("addFiles") && json.containsKey("files")){
+      }catch(JsonSyntaxException e){
 
-          //they want to batch load/update files. Same as above except the file object is now inside of a files array.
-          for (Map obj : (List<Map>) json.get("files")){
+        //couldn't parse it. There's no telling where the next request starts, so we'll stop reading here.
+        System.err.print("Tried to parse invalid json string. " + e);
 
-            if (obj.containsKey("contents") && obj.containsKey("name")){
+      }catch(MalformedJsonException e){
 
-              //same as above. Client will handle the reading of contents
-              fileCache.addFile((String)obj.get("name"), (String) obj.get("contents"));
+        //same thing, only caught while we were reading a request a property at a time.
+        System.err.print("Tried to parse invalid json string. " + e);
 
-            }else if (obj.containsKey("path")){
+      }
 
-              //same as above. if reload equals true then read from disk no matter what.
-              boolean reload = true;
-              if (obj.containsKey("reload")){
+      //don't hang up on any compiles that are still running.
+      connection.awaitPending();
 
-                reload = ((Boolean) obj.get("reload")).booleanValue();
+    }catch(IOException ioe){
 
-              }
+      //client went away before we could read from or write to it.
+      System.err.print(ioe);
 
-              if (reload || (!reload && !fileCache.isCached((String)obj.get("path")))) {
+    }catch(InterruptedException ie){
 
-                //same as above. Have FileCache read from disk and convert to JSSource
-                fileCache.addFile((String)obj.get("path"));
+      //we're being shut down. Let the thread go.
+      Thread.currentThread().interrupt();
 
-              }else {
-                //TODO: add some logging here
-                //System.out.println("CACHE HIT: " + obj.get("path"));
-              }
-            }
-          }
-          send("OK", outToClient);
-        }else {
+    }finally{
 
-          //RUH ROH, we didn't understand the command. Tell the client it's an error. TODO: rework `send` to be more flexible. E.g. tell them why it's an ERROR
-          send("ERROR", outToClient);
-        }
+      try {
+
+        //we're done with this connection
+        connectionSocket.close();
+
+      }catch(IOException ioe){
+        //nothing left to do about it.
       }
     }
   }
 
 
   /**
-   * Sends messages back to the client as a json response.
+   * Reads the next json request off of a client connection. Requests are read a property at a time so that an
+   * `addFiles` whose `cmd` comes before its `files` can be handled while it's being read: each file is encoded (to
+   * UTF-8) and hashed as soon as it's been parsed, and files go in to the cache a few MB at a time (see
+   * STREAMED_COMMIT_BYTES), so a big sync runs in a fixed amount of memory. An addFiles that says it's `atomic` (before
+   * its `files`) is held until the end instead and goes in all at once, bounded by Admission's limit on a single
+   * request (--max-request-mb). Everything else is read in to a map and handed back for handleRequest.
    *
-   * @param msg can be anything. will try to be coerced in to some type of object that can stuffed in to a json response.
-   * @param out stream associated with the client connection.
+   * What's been read is taken on (see Admission) a property (or streamed file) at a time. Once there's no room, the
+   * rest of the request is skipped and it's answered with an OVERLOADED error straight away. Files of a streamed
+   * addFiles that had already gone in stay in.
+   *
+   * @param in the client's stream, positioned at the start of a request
+   * @param connection the connection the request came in on, and where the response goes. null to read the request
+   *                   without taking it on; it had better not be a streamed addFiles.
+   * @param fileCache reference to FileCache so we can add files as they're read
+   * @return the parsed request, or null if it was an addFiles that's already been handled, or there wasn't room for it.
+   *         Either way, call connection.releaseRequest once it's been handled.
+   * @throws IOException the client went away or sent something that isn't json
    */
-  private static void send(Object msg, DataOutputStream out){
-    try{
-
-      //json response we're going to stuff the message in to.
-      Map<String, Object> response = new HashMap<String, Object>();
-
-      /*if (json.containsKey("callback")){
-        response.put("callback", json.get("callback"));
-      }*/
-      response.put("result", msg);
-
-      //spit it out
-      out.writeBytes(gson.toJson(response));
-      //and flush
-      out.flush();
-      //out.close();
+  private static Map<String, Object> readRequest(JsonReader in, Connection connection, FileCache fileCache) throws IOException {
 
-    }catch(IOException ioe){
+    //streamed addFiles are timed from the moment we start reading them.
+    long start = System.nanoTime();
+    if (connection != null) {
+      connection.startRequest();
+    }
 
-      //clients no longer listening?
-      System.err.print(ioe);
+    //not an object. Let gson deal with it like it always has.
+    if (in.peek() != JsonToken.BEGIN_OBJECT) {
+      Map<String, Object> json = gson.fromJson(in, Map.class);
 
+      if (connection != null && !connection.admitRequest()) {
+        sendOverloaded(json, connection);
+        return null;
+      }
+      return json;
     }
-  }
 
+    Map<String, Object> json = new LinkedHashMap<String, Object>();
 
-  /**
-   * Handles the args passed from the client and tries to map them to ClosureCompiler commands and finally tries to run
-   * the compiler and pass the results back to the client.
-   *
-   * @param fileCache reference to FileCache so we can grab cached JSSource files
-   * @param args json args sent from client
-   * @return returns the compile source from the args passed in.
-   */
-  private static String handleCompileWithArgs(FileCache fileCache, Map args){
+    //the files, if we stream an addFiles. null if we didn't.
+    FileCache.Batch batch = null;
 
-    //:drum roll: THE CLOSURE COMPILER
-    Compiler compiler = new Compiler();
+    //whether we ran out of room for the request.
+    boolean overloaded = false;
 
-    //options we'll set further down
-    CompilerOptions options = new CompilerOptions();
+    in.beginObject();
+    while (in.hasNext()) {
 
-    //list of js files to pass to the compiler (to be compiled)
-    List<JSSourceFile> jsFiles = new ArrayList<JSSourceFile>();
+      String name = in.nextName();
 
-    //list of externs files. Used to tell compiler about external api's to the js files.
-    List<JSSourceFile> externFiles = new ArrayList<JSSourceFile>();
+      //no room for the rest. Read past it (all but the id, to answer with) so we can carry on with the next request.
+      if (overloaded && !name.equals("id")) {
+        in.skipValue();
+        continue;
+      }
 
-    //list of js files to load. passed in in json object
-    List<String> files = (List<String>) args.get("js");
+      if (name.equals("files") && "addFiles".equals(json.get("cmd")) && in.peek() == JsonToken.BEGIN_ARRAY) {
 
-    //custom set of externs
-    List<String> externs = (List<String>) args.get("externs");
+        //we know what this is already, so handle each file as it comes off the wire. Contents are encoded and hashed
+        //as they're read and committed a few MB at a time, unless the client wants the whole lot to go in at once (in
+        //which case Admission keeps it from getting bigger than a single request is allowed to be).
+        boolean atomic = Boolean.TRUE.equals(json.get("atomic"));
+        batch = new FileCache.Batch();
 
-    if (files != null){
-      for (String path : files){
+        in.beginArray();
+        while (in.hasNext()) {
 
-        //if this path/name isn't cached, but, it's full/absolute path is.
-        if (!fileCache.isCached(path)){
+          //no room for the rest. Read past it so we can carry on with the next request.
+          if (overloaded) {
+            in.skipValue();
+            continue;
+          }
 
-          //get the absolute path
-          path = new File(path).getAbsolutePath();
-        }
+          Map obj = gson.fromJson(in, Map.class);
+          if (obj != null) {
+            addFileEntry(obj, fileCache, batch);
+          }
 
-        //pull JSSource from fileCache via the path. If it doesn't exist getJSSourceFile will try to read from disk before returning a result.
-        jsFiles.add(fileCache.getJSSourceFile(path));
-      }
-    }
-    /*
-    for (String file : fileCache.contentCache.keySet()){
-      jsFiles.add(JSSourceFile.fromCode(file, fileCache.contentCache.get(file)));
-    }
-    */
+          //make room for what we've read so far, or give up on the rest of the request.
+          if (!connection.admitRequest()) {
+            overloaded = true;
+            batch = new FileCache.Batch();
 
+          }else if (!atomic && batch.bytes() >= STREAMED_COMMIT_BYTES) {
 
-    // if we keep using getDefaultExterns() then we should remove the loop below AND the externs folder in lib AND the
-    // logic listClosureLibraryFiles to pull externs files
-    //
-    //for (String extern : fileCache.externCache.keySet()){
-    //  externFiles.add(fileCache.getJSSourceExtern(extern));
-    //}
+            //what's gone in to the cache is --file-cache-mb's to worry about from here on, not the request's.
+            fileCache.commit(batch);
+            batch = new FileCache.Batch();
+            connection.restartRequest();
+          }
 
-    try{
+        }
+        in.endArray();
 
-      //This will load Closure's default externs from a zip file included in compiler.jar.
-      externFiles = getDefaultExterns();
+      }else {
 
-    }catch(IOException e){
+        //anything else (cmd, id, args, or files that came before the cmd) gets read in whole.
+        json.put(name, gson.fromJson(in, Object.class));
 
-      //bummer, man. No externs today.
-      e.printStackTrace(System.err);
+        if (connection != null && !connection.admitRequest()) {
+          overloaded = true;
+        }
 
+      }
     }
+    in.endObject();
 
+    if (batch == null) {
 
-    //this will append any custom externs passed in in the json object.
-    if (externs != null){
-      for (Object path : externs){
-        //TODO: this is faulty logic. Make this more like the jsFiles check.
-        String absPath = new File((String)path).getAbsolutePath();
-
-        //TODO: move this over to use getJSSourceExtern
-        externFiles.add(fileCache.getJSSourceFile(absPath));
+      if (overloaded) {
+        sendOverloaded(json, connection);
+        return null;
       }
+      return json;
     }
 
-
-
-    if (args.containsKey("charset")) {
-
-      //sets the charset to be passed back. Defaults to utf-8
-      options.setOutputCharset((String)args.get("charset"));
+    //contents are all in. Read whatever has to come from disk and we're done.
+    if (verbose) {
+      System.out.println("CMD: addFiles");
     }
 
-    if (args.containsKey("create_name_map_files")) {
-      //TODO
+    if (overloaded) {
+      connection.send(normalizeId(json.get("id")), admission.overloaded());
+    }else {
+      fileCache.commit(batch);
+      connection.send(normalizeId(json.get("id")), "OK");
     }
-    if (args.containsKey("create_source_map")) {
-      //TODO
-    }
-
 
+    stats.record("addFiles", start, !overloaded);
+    return null;
+  }
 
-    //the existence of manage_closure_dependencies set the value for setManageClosureDependencies
-    options.setManageClosureDependencies(args.containsKey("manage_closure_dependencies"));
 
-    if (args.containsKey("manage_closure_dependencies") && args.containsKey("closure_entry_point")) {
+  /**
+   * Adds a single entry from an `addFiles` request to the batch the request's files are committed in. Compiles see
+   * either all of a batch or none of it.
+   *
+   * @param obj the file object. Same as addFile's.
+   * @param fileCache reference to FileCache so we can check what's cached
+   * @param batch the request's files
+   */
+  private static void addFileEntry(Map obj, FileCache fileCache, FileCache.Batch batch) {
 
-      //we've got some entry points to compile for.
-      Object closureEntryPoints = args.get("closure_entry_point");
+    if (obj.containsKey("contents") && obj.containsKey("name")){
 
-      if (closureEntryPoints instanceof List) {
+      //same as addFile. Client will handle the reading of contents
+      batch.add((String)obj.get("name"), (String) obj.get("contents"), Boolean.TRUE.equals(obj.get("pin")));
 
-        //there are multiple, so pass in as a list
-        options.setManageClosureDependencies((List)closureEntryPoints);
+    }else if (obj.containsKey("path")){
 
-      }else if (closureEntryPoints instanceof String) {
+      //same as addFile. if reload equals true then read from disk no matter what.
+      boolean reload = true;
+      if (obj.containsKey("reload")){
 
-        //it's just one, but, we'll still pass in as a list.
-        options.setManageClosureDependencies(Lists.newArrayList((String) closureEntryPoints));
+        reload = ((Boolean) obj.get("reload")).booleanValue();
 
       }
-    }
 
-    //defaults to simple optimizations
-    CompilationLevel level = CompilationLevel.SIMPLE_OPTIMIZATIONS;
-    if (args.containsKey("compilation_level")) {
+      if (reload || (!reload && !fileCache.isCached((String)obj.get("path")))) {
 
-      //unless the client passes in compilation_level. We'll try to match compilation_level with the CompilationLevel enum
-      level = CompilationLevel.valueOf((String) args.get("compilation_level"));
+        //Have FileCache read from disk and convert to JSSource
+        batch.read((String)obj.get("path"));
 
+      }else {
+        //TODO: add some logging here
+        //System.out.println("CACHE HIT: " + obj.get("path"));
+      }
     }
+  }
 
 
-    if (args.containsKey("define")) {
-      //TODO: not sure how to do this.
+  /**
+   * Reads frames (see Frame) off of a client connection until the client is done sending and handles each one the same
+   * way as a json request. File contents come in as raw payload bytes instead of json strings:
+   *
+   *   addFile - the payload is the file's contents. `file` needs a `name`.
+   *   addFiles - the payload is every file's contents, one after another. Each entry in `files` needs a `name` and the
+   *   `length` (in bytes) of its contents.
+   *
+   * Entries without contents in the payload (e.g. `path` entries) work just like they do in json.
+   *
+   * @param in the client's stream, positioned just after the handshake
+   * @param connection the connection the frames came in on, and where responses go
+   * @param fileCache reference to FileCache so we can add and grab cached JSSource files
+   * @throws IOException the client went away or sent a frame that doesn't make sense
+   */
+  private static void handleFrames(DataInputStream in, Connection connection, FileCache fileCache) throws IOException {
+
+    Frame frame;
+    while ((frame = Frame.read(in, admission)) != null) {
+      try {
+        handleFrame(frame, connection, fileCache);
+      }finally{
+        if (frame.admitted > 0) {
+          admission.releaseBytes(frame.admitted);
+        }
+      }
     }
+  }
 
-    if (args.containsKey("process_closure_primitives")) {
+  /**
+   * Handles a single frame. See handleFrames.
+   */
+  private static void handleFrame(Frame frame, Connection connection, FileCache fileCache) throws IOException {
 
-      //see closure docs for more detail
-      options.closurePass = (Boolean) args.get("process_closure_primitives");
+    Map<String, Object> json = frame.header;
 
+    //no room for its payload. It was never read.
+    if (frame.admitted < 0) {
+      sendOverloaded(json, connection);
+      return;
     }
-    if (args.containsKey("accept_const_keyword")) {
 
-      //see closure docs for more detail
-      options.setAcceptConstKeyword((Boolean)args.get("accept_const_keyword"));
+    if (json != null && frame.payload.length > 0) {
 
-    }
-    if (args.containsKey("deadAssignmentElimination")) {
+      if ("addFile".equals(json.get("cmd")) && json.get("file") instanceof Map) {
 
-      //this isn't normally an excepted keyword, but, I think this adds a lot of value so we're going to make it available here.
-      options.deadAssignmentElimination = ((Boolean)args.get("deadAssignmentElimination")).booleanValue();
+        //the whole payload is the one file.
+        ((Map) json.get("file")).put("contents", new String(frame.payload, "UTF-8"));
 
-    }
-    if (args.containsKey("removeDeadCode")) {
+      }else if ("addFiles".equals(json.get("cmd")) && json.get("files") instanceof List) {
 
-      //this isn't normally an excepted keyword, but, I think this adds a lot of value so we're going to make it available here.
-      options.removeDeadCode = ((Boolean)args.get("removeDeadCode")).booleanValue();
+        //payload is each file's contents back to back. Carve it up by length.
+        int offset = 0;
+        for (Map obj : (List<Map>) json.get("files")) {
 
-    }
-    if (args.containsKey("ideMode")) {
+          if (obj.get("length") instanceof Number) {
 
-      //see closure docs for more detail
-      options.ideMode = ((Boolean)args.get("ideMode")).booleanValue();
+            int length = ((Number) obj.get("length")).intValue();
+            if (length < 0 || offset + length > frame.payload.length) {
+              throw new IOException("File lengths don't add up to the frame's payload: " + obj.get("name"));
+            }
 
+            obj.put("contents", new String(frame.payload, offset, length, "UTF-8"));
+            offset += length;
+          }
+        }
+      }
     }
 
-    //defaults to non-debug mode.
-    level.setOptionsForCompilationLevel(options);
-    if (args.containsKey("debug")) {
+    handleRequest(json, connection, fileCache);
+  }
 
-      //see closure docs for more detail
-      level.setDebugOptionsForCompilationLevel(options);
+  /**
+   * Turns a request away because there's no room for it (see Admission).
+   *
+   * @param json the request
+   * @param connection the connection the request came in on, and where the response goes.
+   */
+  private static void sendOverloaded(Map<String, Object> json, Connection connection) {
 
-    }
+    long start = System.nanoTime();
+    Object id = json != null ? normalizeId(json.get("id")) : null;
+    connection.send(id, admission.overloaded());
 
-    //by default we'll keep things quiet
-    WarningLevel.QUIET.setOptionsForWarningLevel(options);
-    if (args.containsKey("warning_level")) {
+    //one histogram for everything turned away, whatever the cmd.
+    stats.record("overloaded", start, false);
+  }
 
-      //unless they want it to be louder
-      WarningLevel.valueOf((String)args.get("warning_level")).setOptionsForWarningLevel(options);
 
+  /**
+   * Handles a single request read off of a client connection.
+   *
+   * @param json the parsed request. Needs a `cmd` and can have an `id` that will be echoed back in the response.
+   * @param connection the connection the request came in on, and where the response goes.
+   * @param fileCache reference to FileCache so we can add and grab cached JSSource files
+   */
+  private static void handleRequest(Map<String, Object> json, final Connection connection, final FileCache fileCache) {
+
+    //if it's real json AND it's got a cmd then we're in business
+    if (json != null && json.containsKey("cmd")) {
+
+      //what are we going to do.
+      String cmd = (String) json.get("cmd");
+
+      //whatever the client wants to match this request up with its response.
+      final Object id = normalizeId(json.get("id"));
+
+      //how long the client waited for its answer, from here on.
+      final long start = System.nanoTime();
+
+      //false if the command's answered later (compiles) and records its own stats.
+      boolean answered = true;
+
+      //false if the client gets back an ERROR.
+      boolean ok = true;
+
+      if (verbose) {
+        System.out.println("CMD: " + cmd);
+      }
+
+      if (cmd.equals("compile") && json.get("args") != null){
+
+        final Map args = (Map)json.get("args");
+
+        //pass the `args` received in the json object down to handleCompileWithArgs to be chop-suey'd in to the Closure Compiler.
+        //this waits its turn in the compile pool; we'll go on reading (and answering) the client's other requests in the meantime.
+        CompileJobs.Job job = submitCompile(fileCache, args, timeoutMillis(json), Boolean.TRUE.equals(json.get("async")));
+
+        if (job == null) {
+
+          //too much going on. Tell the client when to try again instead of piling on.
+          connection.send(id, admission.overloaded());
+          ok = false;
+
+        }else if (Boolean.TRUE.equals(json.get("async"))) {
+
+          //client only wants the job's id. It'll come back for the rest with status/result/cancel.
+          Map<String, Object> result = new LinkedHashMap<String, Object>();
+          result.put("job", job.id);
+          connection.send(id, result);
+
+        }else {
+
+          //we'll be answering this one later.
+          connection.begin();
+          answered = false;
+
+          job.addListener(new CompileJobs.Listener() {
+            public void finished(CompileJobs.Job job) {
+
+              //Closure Compiler sent us back something, pass it to the client. If it blew up (or ran out of time),
+              //tell the client it's an error.
+              boolean ok = job.getState() == CompileJobs.State.DONE;
+              connection.send(id, ok ? job.getResult() : "ERROR");
+
+              stats.record("compile", start, ok);
+              connection.finish();
+            }
+          }, connection.writer);
+        }
+
+      }else if (cmd.equals("compileBatch") && json.get("targets") instanceof List){
+
+        final List<Map> targets = (List<Map>) json.get("targets");
+
+        //every target is a compile of its own, all waiting their turn in the same compile pool as everybody else's.
+        //They share FileCache's sources, parsed ASTs and default externs, so only the compiling itself is repeated.
+        //The time limit applies to each target.
+        List<CompileJobs.Job> jobs = new ArrayList<CompileJobs.Job>();
+        for (Map args : targets) {
+
+          CompileJobs.Job job = submitCompile(fileCache, args, timeoutMillis(json), false);
+          if (job == null) {
+
+            //no room for this one. The batch is taken on as a whole or not at all, so call off the ones before it.
+            for (CompileJobs.Job submitted : jobs) {
+              submitted.cancel(CompileJobs.State.CANCELLED);
+            }
+            jobs = null;
+            break;
+          }
+          jobs.add(job);
+        }
+
+        if (jobs == null) {
+
+          //too much going on. Tell the client when to try again instead of piling on.
+          connection.send(id, admission.overloaded());
+          ok = false;
+
+        }else {
+
+          //we'll be answering this one later, once every target's done.
+          connection.begin();
+          answered = false;
+
+          //targets still compiling, and whether any of them failed. Whoever finishes last sends the final response.
+          final AtomicInteger remaining = new AtomicInteger(targets.size());
+          final AtomicBoolean failed = new AtomicBoolean(false);
+
+          if (targets.isEmpty()) {
+            connection.send(id, "OK");
+            stats.record("compileBatch", start, true);
+            connection.finish();
+          }
+
+          for (int i = 0; i < targets.size(); i++) {
+
+            final Integer target = i;
+
+            jobs.get(i).addListener(new CompileJobs.Listener() {
+              public void finished(CompileJobs.Job job) {
+
+                //each target's answered as soon as it's compiled, tagged with where it was in `targets`. If this one
+                //blew up, the others can carry on.
+                if (job.getState() == CompileJobs.State.DONE) {
+                  connection.send(id, target, job.getResult());
+                }else {
+                  failed.set(true);
+                  connection.send(id, target, "ERROR");
+                }
+
+                //last one out says we're done.
+                if (remaining.decrementAndGet() == 0) {
+                  connection.send(id, failed.get() ? "ERROR" : "OK");
+                  stats.record("compileBatch", start, !failed.get());
+                  connection.finish();
+                }
+              }
+            }, connection.writer);
+          }
+        }
+
+      }else if (cmd.equals("status") && json.get("job") instanceof Number){
+
+        //where an async compile's at. Same format as stats.
+        CompileJobs.Job job = compileJobs.get(((Number) json.get("job")).longValue());
+        if (job != null) {
+          connection.send(id, gson.toJson(job.getStatus()));
+        }else {
+          connection.send(id, "ERROR");
+          ok = false;
+        }
+
+      }else if (cmd.equals("result") && json.get("job") instanceof Number){
+
+        //an async compile's output. Answered once the job's finished, and then the job's forgotten.
+        CompileJobs.Job job = compileJobs.get(((Number) json.get("job")).longValue());
+        if (job != null) {
+
+          connection.begin();
+          answered = false;
+
+          job.addListener(new CompileJobs.Listener() {
+            public void finished(CompileJobs.Job job) {
+
+              boolean ok = job.getState() == CompileJobs.State.DONE;
+              connection.send(id, ok ? job.getResult() : "ERROR");
+              compileJobs.remove(job.id);
+
+              stats.record("result", start, ok);
+              connection.finish();
+            }
+          }, connection.writer);
+
+        }else {
+          connection.send(id, "ERROR");
+          ok = false;
+        }
+
+      }else if (cmd.equals("cancel") && json.get("job") instanceof Number){
+
+        //stops an async compile. ERROR if it had already finished.
+        ok = compileJobs.cancel(((Number) json.get("job")).longValue());
+        connection.send(id, ok ? "OK" : "ERROR");
+
+      }else if (cmd.equals("echo") && json.containsKey("msg")){
+
+        //I'm made of rubber, you're glue. Simple way for client to check if I'm alive.
+        connection.send(id, json.get("msg").toString());
+
+      }else if (cmd.equals("getFiles")){
+
+        //shortcut for client to check what files we have cached. They can either update files or not pass files in their addFile(s) call.
+        connection.send(id, gson.toJson(fileCache.getFileNames()));
+
+      }else if (cmd.equals("stats")){
+
+        //latencies, cache sizes and memory. Same format as getFiles.
+        connection.send(id, gson.toJson(getStats(fileCache)));
+
+      }else if (cmd.equals("sync") && json.containsKey("files")){
+
+        //client tells us what it has ({name, hash} pairs) and we tell it which of those we're missing or have a
+        //different version of. Saves re-sending everything just to be safe.
+        List<String> stale = new ArrayList<String>();
+
+        for (Map obj : (List<Map>) json.get("files")){
+
+          String name = (String) obj.get("name");
+
+          if (name != null && !fileCache.isCurrent(name, (String) obj.get("hash"))){
+            stale.add(name);
+          }
+        }
+
+        //same format as getFiles.
+        connection.send(id, gson.toJson(stale));
+
+      }else if (cmd.equals("addFile") && json.containsKey("file")){
+
+        //file object. wil contain contents and name or path.
+        Map obj = (Map)json.get("file");
+
+        if (obj.containsKey("contents") && obj.containsKey("name")){
+
+          //it's a named file, so, just stuff the contents in to the cache. Client will handle updating contents. Pinned
+          //files are never evicted.
+          fileCache.addFile((String)obj.get("name"), (String) obj.get("contents"), Boolean.TRUE.equals(obj.get("pin")));
+
+        }else if (obj.containsKey("path")){
+
+          //if reload is true then we'll pull file from disk even if it's cached.
+          boolean reload = true;
+          if (obj.containsKey("reload")){
+            reload = ((Boolean) obj.get("reload")).booleanValue();
+          }
+
+          if (reload || (!reload && !fileCache.isCached((String)obj.get("path")))) {
+
+            //we'll handle reading the contents from disk and passing it to Closure Compiler
+            fileCache.addFile((String)obj.get("path"));
+
+          }
+
+        }
+
+        //welp, if we made it this far then we're ok. Right?
+        connection.send(id, "OK");
+
+      }else if (cmd.equals("addFiles") && json.containsKey("files")){
+
+        //all of the files go in together. Files on disk are read all at once (in parallel) when it's committed.
+        FileCache.Batch batch = new FileCache.Batch();
+
+        //they want to batch load/update files. Same as above except the file object is now inside of a files array.
+        for (Map obj : (List<Map>) json.get("files")){
+          addFileEntry(obj, fileCache, batch);
+        }
+
+        fileCache.commit(batch);
+
+        connection.send(id, "OK");
+      }else {
+
+        //RUH ROH, we didn't understand the command. Tell the client it's an error. TODO: rework `send` to be more flexible. E.g. tell them why it's an ERROR
+        connection.send(id, "ERROR");
+        ok = false;
+
+        //clients can send anything as a cmd. Don't keep a histogram for each one.
+        cmd = "unknown";
+      }
+
+      if (answered) {
+        stats.record(cmd, start, ok);
+      }
+    }
+  }
+
+
+  /**
+   * Hands a compile to compileJobs. The compile's files are snapshotted now, as the request comes in, so the compile
+   * sees exactly what the client had added before asking for it, however long it waits for a compile thread. That
+   * also gives us its key, so if an identical compile is already waiting or running this one just waits for its
+   * output instead of compiling it all over again.
+   *
+   * @param fileCache reference to FileCache so we can grab cached JSSource files
+   * @param args json args sent from client
+   * @param timeoutMillis see timeoutMillis()
+   * @param async true if the client will come back for the result by job id
+   * @return the job. Already FAILED if the args don't make sense (e.g. an entry point nothing provides). null if
+   * there's no room for another compile (see Admission).
+   */
+  private static CompileJobs.Job submitCompile(FileCache fileCache, Map args, long timeoutMillis, boolean async) {
+
+    final Map resolved;
+    final FileCache.Snapshot snapshot;
+    final String key;
+    try {
+
+      resolved = resolveArgs(fileCache, args);
+      snapshot = snapshot(fileCache, resolved);
+      key = compileKey(snapshot, resolved);
+
+    }catch(RuntimeException e){
+
+      //Tell the client it's an error, same as if the compiler had blown up.
+      e.printStackTrace(System.err);
+      return compileJobs.failed(async);
+
+    }
+
+    return compileJobs.submit(key, new Callable<String>() {
+      public String call() {
+        return handleCompileWithArgs(snapshot, resolved, key);
+      }
+    }, resolved, timeoutMillis, async);
+  }
+
+  /**
+   * @param json a compile (or compileBatch) request
+   * @return the `timeout` it asked for (sent in seconds), in milliseconds. 0 if it didn't ask for one.
+   */
+  private static long timeoutMillis(Map<String, Object> json) {
+    if (json.get("timeout") instanceof Number) {
+      return (long) (((Number) json.get("timeout")).doubleValue() * 1000);
+    }
+    return 0;
+  }
+
+
+  /**
+   * Gathers up everything the `stats` command reports: latency per command, compiler pass timings (if they're being
+   * traced), what's cached, and how much memory the jvm's using.
+   *
+   * @param fileCache reference to FileCache so we can see what's cached
+   * @return stats, ready to be turned in to json
+   */
+  static Map<String, Object> getStats(FileCache fileCache) {
+
+    Map<String, Object> snapshot = stats.snapshot();
+
+    snapshot.put("fileCache", fileCache.getStats());
+
+    if (compileJobs != null) {
+      snapshot.put("compileJobs", compileJobs.getStats());
+    }
+
+    if (admission != null) {
+      snapshot.put("admission", admission.getStats());
+    }
+
+    if (outputCache != null) {
+      Map<String, Object> output = new LinkedHashMap<String, Object>();
+      output.put("entries", outputCache.size());
+      output.put("bytes", outputCache.sizeInBytes());
+      output.put("hits", outputCache.getHits());
+      output.put("misses", outputCache.getMisses());
+      snapshot.put("outputCache", output);
+    }
+
+    Runtime runtime = Runtime.getRuntime();
+    Map<String, Object> jvm = new LinkedHashMap<String, Object>();
+    jvm.put("heapUsed", runtime.totalMemory() - runtime.freeMemory());
+    jvm.put("heapCommitted", runtime.totalMemory());
+    jvm.put("heapMax", runtime.maxMemory());
+    jvm.put("threads", Thread.activeCount());
+    snapshot.put("jvm", jvm);
+
+    return snapshot;
+  }
+
+
+  /**
+   * Gson hands us every json number as a double, so an `id` of 7 would be echoed back as 7.0. Whole numbers are turned
+   * back in to longs so the client gets back exactly what it sent.
+   *
+   * @param id the `id` passed in with the request. Can be null.
+   * @return the id as it should be echoed back in the response.
+   */
+  private static Object normalizeId(Object id) {
+    if (id instanceof Double && ((Double) id) == Math.rint((Double) id)) {
+      return ((Double) id).longValue();
+    }
+    return id;
+  }
+
+
+  /**
+   * Sends messages back to the client as a json response. The response is written a piece at a time straight to the
+   * client's stream (no copy of the whole response is built up first) and is always a single line, ending with "\n".
+   *
+   * @param id the `id` of the request this is a response to. Left out of the response if null.
+   * @param msg can be anything. will try to be coerced in to some type of object that can stuffed in to a json response.
+   * @param out stream associated with the client connection.
+   */
+  private static void send(Object id, Object msg, Writer out){
+    send(id, null, msg, out);
+  }
+
+  /**
+   * Same as above, for the response to a single compileBatch target.
+   *
+   * @param id the `id` of the request this is a response to. Left out of the response if null.
+   * @param target index of the target this is the result for. Left out of the response if null.
+   * @param msg can be anything. will try to be coerced in to some type of object that can stuffed in to a json response.
+   * @param out stream associated with the client connection.
+   */
+  private static void send(Object id, Integer target, Object msg, Writer out){
+    try{
+
+      //json response we're going to stuff the message in to. A new writer each time since a JsonWriter only
+      //writes one top level value.
+      JsonWriter response = new JsonWriter(out);
+      response.beginObject();
+
+      //lets the client match this response up with its request, since compiles can finish out of order. Goes first
+      //so the client knows who the result is for before it gets to it.
+      if (id != null){
+        response.name("id");
+        gson.toJson(id, id.getClass(), response);
+      }
+
+      if (target != null){
+        response.name("target").value(target);
+      }
+
+      response.name("result");
+      if (msg == null){
+        response.nullValue();
+      }else if (msg instanceof String){
+        //the common case (compiled source). Escaped on its way in to the buffer.
+        response.value((String) msg);
+      }else {
+        gson.toJson(msg, msg.getClass(), response);
+      }
+
+      response.endObject();
+
+      //json strings can't have a raw new line in them, so a new line always marks the end of a response.
+      out.write('\n');
+
+      //and flush
+      out.flush();
+
+    }catch(IOException ioe){
+
+      //clients no longer listening?
+      System.err.print(ioe);
+
+    }
+  }
+
+
+  /**
+   * Sends a response back to the client as a frame (see Frame). String results (e.g. compiled source) go in the payload
+   * as raw UTF-8 bytes. Anything else goes in the header as `result`, with an empty payload.
+   *
+   * @param id the `id` of the request this is a response to. Left out of the header if null.
+   * @param target index of the compileBatch target this is the result for. Left out of the header if null.
+   * @param msg can be anything.
+   * @param out stream associated with the client connection.
+   * @param gzip true if the client can handle a gzipped payload
+   */
+  private static void sendFrame(Object id, Integer target, Object msg, DataOutputStream out, boolean gzip){
+    try{
+
+      Map<String, Object> header = new LinkedHashMap<String, Object>();
+      if (id != null){
+        header.put("id", id);
+      }
+      if (target != null){
+        header.put("target", target);
+      }
+
+      byte[] payload;
+      if (msg instanceof String){
+        payload = ((String) msg).getBytes("UTF-8");
+      }else {
+        header.put("result", msg);
+        payload = new byte[0];
+      }
+
+      Frame.write(out, header, payload, gzip);
+
+      out.flush();
+
+    }catch(IOException ioe){
+
+      //clients no longer listening?
+      System.err.print(ioe);
+
+    }
+  }
+
+
+  /**
+   * Handles the args passed from the client and tries to map them to ClosureCompiler commands and finally tries to run
+   * the compiler and pass the results back to the client.
+   *
+   * @param fileCache reference to FileCache so we can grab cached JSSource files
+   * @param args json args sent from client
+   * @return returns the compile source from the args passed in.
+   */
+  private static String handleCompileWithArgs(FileCache fileCache, Map args){
+    args = resolveArgs(fileCache, args);
+    FileCache.Snapshot snapshot = snapshot(fileCache, args);
+    return handleCompileWithArgs(snapshot, args, compileKey(snapshot, args));
+  }
+
+  /**
+   * Same as above, for a compile whose args have been resolved and whose files have been snapshotted.
+   *
+   * @param snapshot the compile's js files and externs. See snapshot().
+   * @param args json args sent from client, after resolveArgs()
+   * @param cacheKey the compile's key. See compileKey().
+   * @return returns the compile source from the args passed in.
+   */
+  private static String handleCompileWithArgs(FileCache.Snapshot snapshot, Map args, String cacheKey){
+
+    //client wants us to keep this compile around and only swap in the files that change next time. Only works for a
+    //single module; hot swapping has no idea which module a file's output belongs in.
+    if (hotSwapTargets != null && Boolean.TRUE.equals(args.get("incremental")) && !args.containsKey("module")){
+      return hotSwapTargets.compile(snapshot, args);
+    }
+
+    //client would rather have each file compiled on its own than everything optimized together.
+    if (isPerFile(snapshot, args)){
+      return compilePerFile(snapshot, args);
+    }
+
+    //same inputs, same externs, same args: same output. No need to bother the compiler.
+    if (outputCache != null){
+      String cached = outputCache.get(cacheKey);
+      if (cached != null){
+        return cached;
+      }
+    }
+
+    List<JSModule> modules = modules(snapshot, args);
+
+    Compiler compiler = compile(snapshot, args, modules);
+
+    //TODO: need to figure out how to also pass map files et. al.
+    String source = args.containsKey("module") ? moduleOutput(compiler, modules, args) : compiler.toSource();
+
+    //only clean compiles are kept. If there were errors the client will probably want to see them again.
+    if (outputCache != null && compiler.getResult().success){
+      outputCache.put(cacheKey, source);
+    }
+
+    return source;
+  }
+
+  /**
+   * @param fileCache reference to FileCache so we can look up dependencies
+   * @param args json args sent from client
+   * @return the args with a js list. If there wasn't one, it's worked out from closure_entry_point using FileCache's
+   * dependency index. Everything from here on (caches included) sees the resolved list as if the client had sent it.
+   * @throws IllegalArgumentException an entry point isn't provided anywhere or there's a circular dependency
+   */
+  static Map resolveArgs(FileCache fileCache, Map args){
+    if (!args.containsKey("js") && args.containsKey("closure_entry_point")){
+      args = new HashMap(args);
+      args.put("js", fileCache.resolveDependencies(entryPoints(args)));
+    }
+    return args;
+  }
+
+  /**
+   * @param fileCache reference to FileCache so we can grab cached JSSource files
+   * @param args json args sent from client, after resolveArgs()
+   * @return every file the compile looks at, as of right now. Files added after this don't change what it sees.
+   */
+  static FileCache.Snapshot snapshot(FileCache fileCache, Map args){
+    return fileCache.snapshot((List<String>) args.get("js"), (List<String>) args.get("externs"));
+  }
+
+  /**
+   * Maps the args passed from the client to ClosureCompiler options and inputs and runs the compiler.
+   *
+   * @param snapshot the js files and externs to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @return the compiler, after it's done compiling. Holds on to the compiled AST, so it's ready for toSource().
+   */
+  static Compiler compile(FileCache.Snapshot snapshot, Map args){
+    return compile(snapshot, args, modules(snapshot, args));
+  }
+
+  /**
+   * Same as above, for modules that have already been put together (see modules()). Hang on to them to get at each
+   * module's output with toSource(JSModule) once it's done.
+   *
+   * @param snapshot the js files and externs to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @param modules the js files to compile, split in to modules
+   * @return the compiler, after it's done compiling. Holds on to the compiled AST, so it's ready for toSource().
+   */
+  static Compiler compile(FileCache.Snapshot snapshot, Map args, List<JSModule> modules){
+    return compile(snapshot, args, modules, true);
+  }
+
+  /**
+   * Same as above, optionally leaving out Closure's default externs.
+   *
+   * @param defaultExterns false to compile without Closure's default externs. Only safe for compiles that don't look at
+   *                       externs at all (WHITESPACE_ONLY), where parsing them would be wasted work.
+   */
+  private static Compiler compile(FileCache.Snapshot snapshot, Map args, List<JSModule> modules,
+                                  boolean defaultExterns){
+
+    //the tracer prints its report to the compiler's stream, so give it one we can read back.
+    ByteArrayOutputStream trace = tracePasses ? new ByteArrayOutputStream() : null;
+
+    //:drum roll: THE CLOSURE COMPILER
+    Compiler compiler = trace != null ? new Compiler(new PrintStream(trace)) : new Compiler();
+
+    //options we'll set further down
+    CompilerOptions options = new CompilerOptions();
+
+    if (trace != null) {
+      //just the timings. TracerMode.ALL also measures the output size after every pass, which is slow.
+      options.tracer = CompilerOptions.TracerMode.TIMING_ONLY;
+    }
+
+    //list of externs files. Used to tell compiler about external api's to the js files. Starts off with Closure's
+    //default externs, which FileCache decoded once when it started up.
+    List<JSSourceFile> externFiles = new ArrayList<JSSourceFile>();
+    if (defaultExterns){
+      externFiles.addAll(snapshot.getDefaultExterns());
+    }
+
+    //custom set of externs
+    List<String> externs = (List<String>) args.get("externs");
+
+    /*
+    for (String file : fileCache.contentCache.keySet()){
+      jsFiles.add(JSSourceFile.fromCode(file, fileCache.contentCache.get(file)));
+    }
+    */
+
+
+    //this will append any custom externs passed in in the json object.
+    if (externs != null){
+      for (String path : externs){
+
+        //looks in the extern cache first, then falls back to files added via addFile(s) (or the disk).
+        JSSourceFile extern = snapshot.getJSSourceExtern(path);
+
+        if (extern != null){
+          externFiles.add(extern);
+        }else {
+          //couldn't find it anywhere. Compile without it.
+          System.err.println("Couldn't find extern: " + path);
+        }
+      }
+    }
+
+
+
+    if (args.containsKey("charset")) {
+
+      //sets the charset to be passed back. Defaults to utf-8
+      options.setOutputCharset((String)args.get("charset"));
+    }
+
+    if (args.containsKey("create_name_map_files")) {
+      //TODO
+    }
+    if (args.containsKey("create_source_map")) {
+      //TODO. Modules are printed side by side (see moduleOutput), and they'd all write to the one source map.
+    }
+
+
+
+    //the existence of manage_closure_dependencies set the value for setManageClosureDependencies
+    options.setManageClosureDependencies(args.containsKey("manage_closure_dependencies"));
+
+    if (args.containsKey("manage_closure_dependencies") && args.containsKey("closure_entry_point")) {
+
+      //we've got some entry points to compile for.
+      options.setManageClosureDependencies(entryPoints(args));
+
+    }
+
+    //defaults to simple optimizations
+    CompilationLevel level = CompilationLevel.SIMPLE_OPTIMIZATIONS;
+    if (args.containsKey("compilation_level")) {
+
+      //unless the client passes in compilation_level. We'll try to match compilation_level with the CompilationLevel enum
+      level = CompilationLevel.valueOf((String) args.get("compilation_level"));
+
+    }
+
+
+    if (args.containsKey("define")) {
+      //TODO: not sure how to do this.
+    }
+
+    if (args.containsKey("process_closure_primitives")) {
+
+      //see closure docs for more detail
+      options.closurePass = (Boolean) args.get("process_closure_primitives");
+
+    }
+    if (args.containsKey("accept_const_keyword")) {
+
+      //see closure docs for more detail
+      options.setAcceptConstKeyword((Boolean)args.get("accept_const_keyword"));
+
+    }
+    if (args.containsKey("deadAssignmentElimination")) {
+
+      //this isn't normally an excepted keyword, but, I think this adds a lot of value so we're going to make it available here.
+      options.deadAssignmentElimination = ((Boolean)args.get("deadAssignmentElimination")).booleanValue();
+
+    }
+    if (args.containsKey("removeDeadCode")) {
+
+      //this isn't normally an excepted keyword, but, I think this adds a lot of value so we're going to make it available here.
+      options.removeDeadCode = ((Boolean)args.get("removeDeadCode")).booleanValue();
+
+    }
+    if (args.containsKey("ideMode")) {
+
+      //see closure docs for more detail
+      options.ideMode = ((Boolean)args.get("ideMode")).booleanValue();
+
+    }
+
+    //defaults to non-debug mode.
+    level.setOptionsForCompilationLevel(options);
+    if (args.containsKey("debug")) {
+
+      //see closure docs for more detail
+      level.setDebugOptionsForCompilationLevel(options);
+
+    }
+
+    //by default we'll keep things quiet
+    WarningLevel.QUIET.setOptionsForWarningLevel(options);
+    if (args.containsKey("warning_level")) {
+
+      //unless they want it to be louder
+      WarningLevel.valueOf((String)args.get("warning_level")).setOptionsForWarningLevel(options);
+
+    }
+
+    //COMPILE IT ALL
+    compiler.compileModules(externFiles, modules, options);
+
+    if (trace != null) {
+      try {
+        stats.recordPasses(trace.toString("UTF-8"));
+      }catch(UnsupportedEncodingException e){
+        //every jvm has UTF-8.
+      }
+    }
+
+    return compiler;
+  }
+
+  /**
+   * Puts the js files to compile in to modules. Inputs are backed by FileCache's parsed ASTs, so the compiler doesn't
+   * have to parse them all over again. Without a `module` arg everything goes in one module.
+   *
+   * `module` works like the compiler's --module flag: each entry is "name:numberOfFiles[:dependency,...]" and takes the
+   * next numberOfFiles files from the js list, in order. Every module but the first has to depend on at least one
+   * module listed before it.
+   *
+   * @param snapshot the js files to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @return modules to hand the compiler, in order
+   * @throws IllegalArgumentException a `module` entry doesn't make sense or they don't add up to the js list
+   */
+  static List<JSModule> modules(FileCache.Snapshot snapshot, Map args){
+
+    //which parsed version of each file this compile can reuse.
+    String parserKey = parserKey(args);
+
+    //list of js files to load. passed in in json object
+    List<String> files = (List<String>) args.get("js");
+    if (files == null){
+      files = Collections.emptyList();
+    }
+
+    List<String> specs = stringList(args.get("module"));
+
+    //no modules. Everything goes in one.
+    if (specs.isEmpty()){
+      JSModule jsModule = new JSModule("main");
+      addInputs(jsModule, files, snapshot, parserKey);
+      return Lists.newArrayList(jsModule);
+    }
+
+    List<JSModule> modules = new ArrayList<JSModule>();
+    Map<String, JSModule> byName = new HashMap<String, JSModule>();
+
+    //next file in the js list that hasn't gone in to a module yet.
+    int next = 0;
+
+    for (String spec : specs){
+
+      //name:numberOfFiles[:dependency,dependency...]
+      String[] parts = spec.split(":");
+      if (parts.length < 2 || parts.length > 3 || parts[0].length() == 0 || byName.containsKey(parts[0])){
+        throw new IllegalArgumentException("Bad module: " + spec);
+      }
+
+      int count;
+      try {
+        count = Integer.parseInt(parts[1]);
+      }catch(NumberFormatException e){
+        throw new IllegalArgumentException("Bad number of files for module: " + spec);
+      }
+      if (count < 1 || next + count > files.size()){
+        throw new IllegalArgumentException("Not enough js files left for module: " + spec);
+      }
+
+      JSModule jsModule = new JSModule(parts[0]);
+
+      if (parts.length == 3){
+        for (String dependency : parts[2].split(",")){
+          JSModule required = byName.get(dependency);
+          if (required == null){
+            throw new IllegalArgumentException("Module " + parts[0] + " depends on " + dependency + ", which has to come before it.");
+          }
+          jsModule.addDependency(required);
+        }
+      }else if (!modules.isEmpty()){
+        throw new IllegalArgumentException("Only the first module can do without dependencies: " + spec);
+      }
+
+      addInputs(jsModule, files.subList(next, next + count), snapshot, parserKey);
+      next += count;
+
+      modules.add(jsModule);
+      byName.put(parts[0], jsModule);
+    }
+
+    if (next != files.size()){
+      throw new IllegalArgumentException("Modules only cover " + next + " of the " + files.size() + " js files.");
+    }
+
+    return modules;
+  }
+
+  /**
+   * Adds cached js files to a module.
+   *
+   * @param jsModule the module to add to
+   * @param files names (or paths) of the files to add, in order
+   * @param snapshot the js files to compile. See FileCache.snapshot.
+   * @param parserKey which parsed version of each file the compile can reuse. See parserKey().
+   * @throws IllegalArgumentException some of the files couldn't be found (e.g. they were evicted and the client hasn't
+   * sent them again). Compiling without them would just hand the client a broken build.
+   */
+  private static void addInputs(JSModule jsModule, List<String> files, FileCache.Snapshot snapshot, String parserKey){
+
+    List<String> missing = new ArrayList<String>();
+    for (String path : files){
+
+      //pull the input from the snapshot via the path. The snapshot already looked for it by absolute path and on disk.
+      CompilerInput input = snapshot.getCompilerInput(path, parserKey);
+
+      if (input != null){
+        jsModule.add(input);
+      }else {
+        missing.add(path);
+      }
+    }
+
+    if (!missing.isEmpty()){
+      throw new IllegalArgumentException("Couldn't find files to compile: " + missing);
+    }
+  }
+
+  /**
+   * Prints each module's compiled output, wrapping it with its `module_wrapper` if it's got one. The modules are
+   * printed side by side on the output pool. The compiler isn't tied to a thread (it runs each call on a thread of its
+   * own anyway), and once it's done compiling, printing a module only reads the AST. The one thing printing writes
+   * to is the compiler's source map, which we never turn on (see create_source_map); if that changes, modules have to
+   * be printed one at a time.
+   *
+   * `module_wrapper` works like the compiler's --module_wrapper flag: each entry is "name:wrapper", and the module's
+   * output goes wherever "%s" is in the wrapper.
+   *
+   * @param compiler the compiler, after it's done compiling
+   * @param modules the modules it compiled
+   * @param args json args sent from client
+   * @return json object of module name -> output, in module order
+   */
+  static String moduleOutput(final Compiler compiler, List<JSModule> modules, Map args){
+
+    //module name -> wrapper.
+    Map<String, String> wrappers = new HashMap<String, String>();
+    for (String spec : stringList(args.get("module_wrapper"))){
+      int colon = spec.indexOf(':');
+      if (colon < 1){
+        throw new IllegalArgumentException("Bad module_wrapper: " + spec);
+      }
+      wrappers.put(spec.substring(0, colon), spec.substring(colon + 1));
+    }
+
+    List<Callable<String>> printers = new ArrayList<Callable<String>>();
+    for (final JSModule jsModule : modules){
+
+      final String wrapper = wrappers.get(jsModule.getName());
+
+      printers.add(new Callable<String>() {
+        public String call() {
+          String source = compiler.toSource(jsModule);
+
+          if (wrapper == null){
+            return source;
+          }
+
+          //only the first %s. Anything else in the wrapper is left alone.
+          int at = wrapper.indexOf("%s");
+          return at == -1 ? wrapper : wrapper.substring(0, at) + source + wrapper.substring(at + 2);
+        }
+      });
+    }
+
+    Map<String, String> output = new LinkedHashMap<String, String>();
+    try {
+
+      List<Future<String>> printed = outputPool.invokeAll(printers);
+      for (int i = 0; i < modules.size(); i++){
+        output.put(modules.get(i).getName(), printed.get(i).get());
+      }
+
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while printing modules.", e);
+    }catch(ExecutionException e){
+      throw new IllegalStateException("Couldn't print modules.", e.getCause());
+    }
+
+    return gson.toJson(output);
+  }
+
+  /**
+   * @param value an arg that can be passed in as a single string or a list of them
+   * @return the arg as a list. Empty if it wasn't passed in.
+   */
+  static List<String> stringList(Object value){
+    if (value instanceof List){
+      return (List<String>) value;
+    }else if (value instanceof String){
+      return Lists.newArrayList((String) value);
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Whether a compile can be done a file at a time (see compilePerFile). Clients ask for it with per_file, but it's
+   * only done when the files really don't need each other: not for ADVANCED_OPTIMIZATIONS (which renames across
+   * files), modules or manage_closure_dependencies, and not for SIMPLE_OPTIMIZATIONS if any of the files provides or
+   * requires a namespace (or is base.js). SIMPLE_OPTIMIZATIONS turns on the closure pass whatever the client asks for,
+   * and it rewrites each goog.provide in to a namespace declaration, so every file would declare (and wipe out) the
+   * namespace again. WHITESPACE_ONLY doesn't run any passes, so it's fine. Anything else gets compiled as a whole as
+   * usual.
+   *
+   * @param snapshot the js files and externs to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   */
+  static boolean isPerFile(FileCache.Snapshot snapshot, Map args){
+
+    if (!Boolean.TRUE.equals(args.get("per_file"))
+        || "ADVANCED_OPTIMIZATIONS".equals(args.get("compilation_level"))
+        || args.containsKey("module")
+        || args.containsKey("manage_closure_dependencies")){
+      return false;
+    }
+
+    if ("WHITESPACE_ONLY".equals(args.get("compilation_level"))){
+      return true;
+    }
+
+    for (String path : stringList(args.get("js"))){
+      if (snapshot.usesNamespaces(path)){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compiles each of the js files on its own, side by side on the output pool, and sticks the outputs together in
+   * order. Each file's output is kept in the output cache under its contents and the args, so after an edit only the
+   * files that changed get compiled again. Nothing optimizes across files, so the output can be a little bigger than
+   * compiling them all together.
+   *
+   * @param snapshot the js files and externs to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @return the compiled source of every file, one after another
+   */
+  private static String compilePerFile(final FileCache.Snapshot snapshot, final Map args){
+
+    List<String> files = (List<String>) args.get("js");
+    if (files == null){
+      files = new ArrayList<String>();
+    }
+
+    //everything but the js list goes in to each file's key. Turning per_file on or off doesn't change a file's output.
+    Map options = new HashMap(args);
+    options.remove("js");
+    options.remove("per_file");
+    StringBuilder optionsKey = new StringBuilder(argsKey(options));
+
+    List<String> externs = (List<String>) args.get("externs");
+    if (externs != null){
+      for (String path : externs){
+        optionsKey.append("\nextern:").append(path).append('=').append(snapshot.getExternDigest(path));
+      }
+    }
+
+    //whitespace only compiles don't look at externs, so don't make every file parse the default ones.
+    final boolean defaultExterns = !"WHITESPACE_ONLY".equals(args.get("compilation_level"));
+
+    List<Callable<String>> compiles = new ArrayList<Callable<String>>();
+    for (final String path : files){
+
+      //a file we couldn't find doesn't get a key, so it's never cached.
+      String digest = snapshot.getDigest(path);
+      final String key = digest == null ? null : FileCache.digest(optionsKey + "\njs=" + digest);
+
+      compiles.add(new Callable<String>() {
+        public String call() {
+
+          if (outputCache != null && key != null){
+            String cached = outputCache.get(key);
+            if (cached != null){
+              return cached;
+            }
+          }
+
+          Map fileArgs = new HashMap(args);
+          fileArgs.put("js", Collections.singletonList(path));
+
+          Compiler compiler = compile(snapshot, fileArgs, modules(snapshot, fileArgs), defaultExterns);
+          String source = compiler.toSource();
+
+          //same as whole compiles: only clean output is kept.
+          if (outputCache != null && key != null && compiler.getResult().success){
+            outputCache.put(key, source);
+          }
+
+          return source;
+        }
+      });
+    }
+
+    StringBuilder output = new StringBuilder();
+    try {
+
+      //the whole output isn't cached as well. It'd only double up on what each file's already got in there.
+      for (Future<String> compiled : outputPool.invokeAll(compiles)){
+        output.append(compiled.get());
+      }
+
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while compiling files.", e);
+    }catch(ExecutionException e){
+      throw new IllegalStateException("Couldn't compile files.", e.getCause());
+    }
+
+    return output.toString();
+  }
+
+  /**
+   * Builds a key describing everything that goes in to a compile: the args (in a normalized order) and the contents
+   * of each input and custom extern, in order. Closure's default externs are left out since they never change while
+   * we're running.
+   *
+   * @param snapshot the js files and externs to compile. See FileCache.snapshot.
+   * @param args json args sent from client
+   * @return a digest that's the same for any two compiles that would have the same output
+   */
+  static String compileKey(FileCache.Snapshot snapshot, Map args){
+
+    //the args, sorted, so clients can send them in whatever order they like.
+    StringBuilder key = new StringBuilder(argsKey(args));
+
+    List<String> files = (List<String>) args.get("js");
+    if (files != null){
+      for (String path : files){
+        key.append("\njs:").append(path).append('=').append(snapshot.getDigest(path));
+      }
+    }
+
+    List<String> externs = (List<String>) args.get("externs");
+    if (externs != null){
+      for (String path : externs){
+        key.append("\nextern:").append(path).append('=').append(snapshot.getExternDigest(path));
+      }
+    }
+
+    return FileCache.digest(key.toString());
+  }
+
+  /**
+   * @param args json args sent from client
+   * @return the args serialized with every map's keys sorted, so the same args sent in a different order match.
+   */
+  static String argsKey(Map args){
+    return gson.toJson(normalize(args));
+  }
+
+  /**
+   * Sorts the keys of every map in a parsed json value so equal values serialize the same way.
+   *
+   * @param value a parsed json value
+   * @return the same value with every map replaced by a sorted copy
+   */
+  private static Object normalize(Object value){
+    if (value instanceof Map){
+      Map<String, Object> sorted = new TreeMap<String, Object>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()){
+        sorted.put(entry.getKey(), normalize(entry.getValue()));
+      }
+      return sorted;
+    }
+    if (value instanceof List){
+      List<Object> normalized = new ArrayList<Object>();
+      for (Object item : (List) value){
+        normalized.add(normalize(item));
+      }
+      return normalized;
+    }
+    return value;
+  }
+
+  /**
+   * @param args json args sent from client
+   * @return the closure_entry_point arg as a list. It can be passed in as a single string or a list of them.
+   */
+  static List<String> entryPoints(Map args){
+    return stringList(args.get("closure_entry_point"));
+  }
+
+  /**
+   * Describes the parts of the compile args that change how a file gets parsed. Parsed ASTs are only shared between
+   * compiles with the same key.
+   *
+   * @param args json args sent from client
+   * @return key for FileCache's parsed ASTs
+   */
+  static String parserKey(Map args){
+    return "accept_const_keyword=" + Boolean.TRUE.equals(args.get("accept_const_keyword"))
+        + ",ideMode=" + Boolean.TRUE.equals(args.get("ideMode"));
+  }
+}
+
+/**
+ * Simple class to help with reading and caching files to memory.
+ *
+ * @author Matt Powell (twitter.com/mattpowell)
+ */
+class FileCache {
+
+  //acts as the cache for all js source files, by name. Entries are never changed once they're in here; a new version
+  //of a file gets a new Entry. Reads (snapshot() and friends) don't lock anything but the read lock below, and only
+  //while they pick out entries. Writes build their entries first and only lock to swap them in (see commit()).
+  protected Map<String, Entry> contentCache = new ConcurrentHashMap<String, Entry>();
+
+  //held (for reading) while a snapshot picks out its entries, and (for writing) while a batch of files is swapped in
+  //or files are evicted/removed. Neither does any real work while holding it, so nobody waits on it for long. Keeps
+  //a compile from seeing half of an addFiles.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  //bumped every time something's committed or removed. Snapshots remember which version they saw.
+  private long version = 0;
+
+  //ticks every time a file's committed or snapshotted. Stamped on entries so eviction can tell which were used last.
+  private final AtomicLong clock = new AtomicLong();
+
+  /**
+   * Where a cached file came from, which decides what happens to it when it's evicted.
+   */
+  enum Origin {
+
+    //sent by a client. Gone for good once it's evicted; the client has to send it again.
+    CLIENT,
+
+    //read from disk. Read again if it's compiled after being evicted.
+    DISK,
+
+    //read from the library jar. Goes back to being an unread library file when it's evicted.
+    LIBRARY
+  }
+
+  /**
+   * One version of a cached file. Everything but lastUsed is fixed, so a compile can hang on to the entries it
+   * started with while other connections carry on adding files.
+   */
+  static final class Entry {
+
+    final String name;
+
+    //contents as UTF-8 (half the size of a String for most js). Only decoded if a compile needs to parse them.
+    final byte[] contents;
+
+    //hex encoded digest of the contents. Lets us tell when addFile actually changes something.
+    final String digest;
+
+    final Origin origin;
+
+    //pinned files are never evicted. Only client files need this; the rest can always be read again.
+    final boolean pinned;
+
+    //untouched parse results for this version of the file, keyed by parser settings (see TCPServer.parserKey).
+    //Handed out to compiles (via CachedAst), which run concurrently and share it.
+    final Map<String, Node> parsed;
+
+    //what the file provides and requires. Worked out before the entry is committed.
+    final DependencyIndex.Deps deps;
+
+    //tick of the clock this entry was last committed or snapshotted at.
+    volatile long lastUsed;
+
+    Entry(String name, String contents, Origin origin, boolean pin) {
+      this.name = name;
+      this.contents = contents.getBytes(StandardCharsets.UTF_8);
+      this.digest = FileCache.digest(this.contents);
+      this.origin = origin;
+      this.pinned = pin;
+      this.parsed = new ConcurrentHashMap<String, Node>();
+      this.deps = DependencyIndex.scan(contents);
+    }
+
+    /**
+     * Same contents as an entry that's already cached (and whatever's been parsed from them), with a new origin and pin.
+     */
+    Entry(Entry previous, Origin origin, boolean pin) {
+      this.name = previous.name;
+      this.contents = previous.contents;
+      this.digest = previous.digest;
+      this.origin = origin;
+      this.pinned = pin;
+      this.parsed = previous.parsed;
+      this.deps = previous.deps;
+    }
+
+    /**
+     * @return a source file for the compiler. See FileCache.source().
+     */
+    JSSourceFile source() {
+      return FileCache.source(name, contents);
+    }
+  }
+
+  /**
+   * A set of files to add to the cache all at once (see commit()). Contents handed to add() are encoded, hashed and
+   * scanned for provides/requires right away, so the request they came in on can be thrown away as it's read; files
+   * to read from disk are read when the batch is committed.
+   */
+  static final class Batch {
+
+    //files we've got the contents of, in the order they were added.
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    //files to read from disk, in the order they were added.
+    private final List<String> paths = new ArrayList<String>();
+
+    //size of the contents in entries.
+    private long bytes = 0;
+
+    /**
+     * @param name generic name, acts as a key. Potentially a path.
+     * @param contents actually contents of the file.
+     * @param pin true to keep the file cached no matter what. false un-pins it if it was pinned before.
+     */
+    void add(String name, String contents, boolean pin) {
+      add(name, contents, Origin.CLIENT, pin);
+    }
+
+    void add(String name, String contents, Origin origin, boolean pin) {
+      Entry entry = new Entry(name, contents, origin, pin);
+      entries.add(entry);
+      bytes += entry.contents.length;
+    }
+
+    /**
+     * @param path path to a file on disk. can be relative or absolute.
+     */
+    void read(String path) {
+      paths.add(path);
+    }
+
+    boolean isEmpty() {
+      return entries.isEmpty() && paths.isEmpty();
+    }
+
+    /**
+     * @return bytes of contents (as UTF-8) added so far. Files to be read from disk don't count until they're read.
+     */
+    long bytes() {
+      return bytes;
+    }
+  }
+
+  /**
+   * The files a compile needs, as they were at one moment (see FileCache.snapshot). Files added after the snapshot was
+   * taken don't show up in it, so a compile (its inputs, its externs and the digests its output is cached under) sees
+   * one version of everything, even if an addFiles lands part way through.
+   */
+  static final class Snapshot {
+
+    private final FileCache fileCache;
+
+    //path as it was asked for -> the entry it resolved to. null if the file couldn't be found.
+    private final Map<String, Entry> entries;
+
+    //FileCache version the snapshot was taken at.
+    final long version;
+
+    private Snapshot(FileCache fileCache, Map<String, Entry> entries, long version) {
+      this.fileCache = fileCache;
+      this.entries = entries;
+      this.version = version;
+    }
+
+    /**
+     * @param path one of the paths the snapshot was taken of.
+     * @return the JSSourceFile or null if the file couldn't be found.
+     */
+    public JSSourceFile getJSSourceFile(String path) {
+      Entry entry = entries.get(path);
+      return entry != null ? entry.source() : null;
+    }
+
+    /**
+     * Same as getJSSourceFile, but hands back an input for the compiler that reuses whatever parsing has already been
+     * done for this version of the file (with the same parser settings).
+     *
+     * @param path one of the paths the snapshot was taken of.
+     * @param parserKey parser settings of the compile the input is for. See TCPServer.parserKey.
+     * @return an input for the compiler or null if the file couldn't be found.
+     */
+    public CompilerInput getCompilerInput(String path, String parserKey) {
+      Entry entry = entries.get(path);
+      if (entry == null) {
+        return null;
+      }
+      return new CompilerInput(new CachedAst(entry.source(), entry.parsed, parserKey), false);
+    }
+
+    /**
+     * @param path one of the paths the snapshot was taken of.
+     * @return hex encoded digest of the file's contents, or null if the file couldn't be found.
+     */
+    public String getDigest(String path) {
+      Entry entry = entries.get(path);
+      return entry != null ? entry.digest : null;
+    }
+
+    /**
+     * @param path one of the paths the snapshot was taken of.
+     * @return true if the file provides or requires a Closure namespace, or is base.js. false if it couldn't be found.
+     */
+    public boolean usesNamespaces(String path) {
+      Entry entry = entries.get(path);
+      return entry != null && (!entry.deps.provides.isEmpty() || !entry.deps.requires.isEmpty() || entry.deps.base);
+    }
+
+    /**
+     * Same as getDigest, but for externs. Externs in the extern cache are only loaded at start up, so their name is
+     * all we need to tell them apart.
+     *
+     * @param path one of the paths the snapshot was taken of.
+     * @return something that changes whenever the extern's contents do, or null if it couldn't be found.
+     */
+    public String getExternDigest(String path) {
+      String name = fileCache.resolveExtern(path);
+      return name != null ? "extern:" + name : getDigest(path);
+    }
+
+    /**
+     * Gets the JSSourceFile for an extern. Looks in the extern cache (Closure's default externs and the ones preloaded
+     * with the library) by name and then by absolute path. Anything else is treated like a regular file.
+     *
+     * @param path one of the paths the snapshot was taken of.
+     * @return the JSSourceFile or null if it couldn't be found.
+     */
+    public JSSourceFile getJSSourceExtern(String path) {
+      String name = fileCache.resolveExtern(path);
+      return name != null ? fileCache.externCache.get(name) : getJSSourceFile(path);
+    }
+
+    /**
+     * @return Closure's default externs. See FileCache.getDefaultExterns.
+     */
+    public List<JSSourceFile> getDefaultExterns() {
+      return fileCache.getDefaultExterns();
+    }
+  }
+
+  //acts as the cache for all extern files
+  protected Map<String, JSSourceFile> externCache = new ConcurrentHashMap<String, JSSourceFile>();
+
+  //number of threads reading files from disk during addFiles.
+  private static final int IO_THREADS = 8;
+
+  //where base.js and deps.js live inside the library jar.
+  private static final String LIBRARY_BASE = "closure/goog/base.js";
+  private static final String LIBRARY_DEPS = "closure/goog/deps.js";
+
+  //the jar the Closure Library is bundled in. null if the library isn't included.
+  private JarFile libraryJar;
+
+  //Closure Library files in libraryJar that haven't been read yet. They're read (and cached) the first time they're
+  //asked for, so we only pay for the parts of the library that actually get used.
+  protected Set<String> librarySources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  //digests of library files we've read from the jar. The jar doesn't change, so they're still good once the file's
+  //been evicted.
+  private final Map<String, String> libraryDigests = new ConcurrentHashMap<String, String>();
+
+  //same as librarySources, but for the library's externs.
+  protected Set<String> libraryExterns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  //what each cached (or indexed library) file goog.provide's and goog.require's. Kept up to date as files change.
+  private final DependencyIndex dependencyIndex = new DependencyIndex();
+
+  //reads files from disk for addFiles. Reads are mostly waiting on the disk, so there's more of these than cores.
+  private final ExecutorService ioPool = Executors.newFixedThreadPool(IO_THREADS, new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      //don't keep the jvm alive on our account.
+      Thread thread = new Thread(runnable, "FileCache-io");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  //watches the directories of files that were read from disk. null unless startWatching() has been called.
+  private volatile WatchService watchService;
+
+  //files read from disk that are being watched (by absolute path) and the name each one is cached under.
+  private final Map<Path, String> watchedFiles = new ConcurrentHashMap<Path, String>();
+
+  //directories registered with the watch service.
+  private final Set<Path> watchedDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+  //Closure's default externs, decoded from compiler.jar once. Every compile starts off with these.
+  private final List<JSSourceFile> defaultExterns;
+
+  //total size (in bytes) of everything in contentCache, and how big that's allowed to get. 0 means there's no limit.
+  //Only changed while holding the write lock.
+  private long totalBytes = 0;
+  private final long maxBytes;
+
+  //number of files evicted so far. Only used for stats.
+  private long evictions = 0;
+
+  //print every file that's added. See TCPServer.Options.isVerbose.
+  private volatile boolean verbose = false;
+
+  /**
+   * Same as below, with no limit on how much is cached.
+   *
+   * @param preloadClosure if true (default) will make the entire Closure Library available.
+   * @throws IOException couldn't read compiler.jar's externs or open the library jar
+   */
+  public FileCache(boolean preloadClosure) throws IOException {
+    this(preloadClosure, 0);
+  }
+
+  /**
+   * Main constructor for FileCache. Will try to index the Closure Library if preloadClosure is true
+   *
+   * @param preloadClosure if true (default) will make the entire Closure Library available. Only the list of files is
+   * read up front; their contents are read the first time they're needed.
+   * @param maxBytes roughly how much memory (in bytes) cached file contents are allowed to take up before the least
+   * recently used files are evicted. 0 means there's no limit.
+   * @throws IOException couldn't read compiler.jar's externs or open the library jar
+   */
+  public FileCache(boolean preloadClosure, long maxBytes) throws IOException {
+
+    this.maxBytes = maxBytes;
+
+    //these never change, so there's no sense unzipping them for every compile.
+    defaultExterns = Collections.unmodifiableList(loadDefaultExterns());
+
+    if (preloadClosure) {
+
+      //the jar we're running from, if the library's in it.
+      libraryJar = findClosureLibraryJar();
+
+      if (libraryJar != null) {
+
+        //looks inside of this jar for a list of files in lib/closure-library/(closure|externs)
+        Map<String, Set<String>> closureFiles = listClosureLibraryFiles(libraryJar);
+
+        //all the js files inside of closure/. Read from the jar when they're first needed.
+        librarySources.addAll(closureFiles.get("sources"));
+
+        //all the js files (externs) inside externs/. Same deal.
+        libraryExterns.addAll(closureFiles.get("externs"));
+
+        //the library's deps.js already lists what every library file provides and requires, so we can index the
+        //whole library without reading any of it.
+        if (librarySources.contains(LIBRARY_DEPS)) {
+          dependencyIndex.addDepsFile(LIBRARY_BASE, readFromJar(LIBRARY_DEPS));
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Graps a zip of externs hidden inside compiler.jar and "converts" them to JSSource files. The externs are also
+   * added to the extern cache so they can be referenced by name.
+   *
+   * @return list of externs pulled from compiler.jar
+   * @throws IOException
+   */
+  private List<JSSourceFile> loadDefaultExterns() throws IOException {
+
+    //will contain the JSSourceFile version of each extern
+    List<JSSourceFile> externs = Lists.newArrayList();
+
+    //look for the zip of externs in compiler.jar
+    InputStream input = Compiler.class.getResourceAsStream("/externs.zip");
+
+    if (input == null) {
+      //bummer, man. No externs today.
+      System.err.println("Couldn't find externs.zip in compiler.jar. Compiling without default externs.");
+      return externs;
+    }
+
+    //read the zip
+    ZipInputStream zip = new ZipInputStream(input);
+
+    for (ZipEntry entry = null; (entry = zip.getNextEntry()) != null; ) {
+
+      //limits size of input. potentially a little quicker.
+      LimitInputStream entryStream = new LimitInputStream(zip, entry.getSize());
+
+      //add the file to our list
+      JSSourceFile extern = JSSourceFile.fromInputStream(entry.getName(), entryStream);
+      externs.add(extern);
+      externCache.put(entry.getName(), extern);
+
+    }
+
+    zip.close();
+
+    return externs;
+
+  }
+
+  /**
+   * @return Closure's default externs. Shared by every compile, so the list can't be modified.
+   */
+  public List<JSSourceFile> getDefaultExterns() {
+    return defaultExterns;
+  }
+
+  /**
+   * Used to pull file contents from inside the library jar. The path needs to be in "jar syntax".
+   * No assumptions are made on lookup. File is there, or it's not. Callers should handle variations.
+   *
+   * @param path to file inside the jar
+   * @return returns the contents of the file specified by the path
+   * @throws IOException couldn't find the path in the jar
+   */
+  private String readFromJar(String path) throws IOException{
+
+    //assuming the passed in path will resolve within the jar.
+    JarEntry entry = libraryJar.getJarEntry(path);
+    if (entry == null){
+      throw new FileNotFoundException(path);
+    }
+
+    InputStream is = libraryJar.getInputStream(entry);
+    try {
+
+      //read the raw bytes in one go and decode them once. The jar tells us how big the file is.
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+      byte[] buffer = new byte[8192];
+      for (int read; (read = is.read(buffer)) != -1; ) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toString("UTF-8");
+
+    }finally{
+      is.close();
+    }
+  }
+
+  /**
+   * Looks for an extern in the extern cache, by name and then by absolute path. Library externs are read from the jar
+   * the first time they're asked for.
+   *
+   * @param path or name of the extern.
+   * @return the key the extern is cached under, or null if it isn't a known extern.
+   */
+  private String resolveExtern(String path){
+
+    for (String name : new String[] {path, new File(path).getAbsolutePath()}){
+
+      if (externCache.containsKey(name)){
+        return name;
+      }
+
+      if (libraryExterns.contains(name)){
+        try {
+
+          //two compiles might both read it. Same contents either way.
+          addExtern(name, readFromJar(name));
+          libraryExterns.remove(name);
+          return name;
+
+        }catch(IOException ioe){
+          //uh oh
+          System.err.print(ioe);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lists the names (or paths) of everything in the contents cache. Returns a copy so callers can iterate over it
+   * while other connections keep adding files.
+   *
+   * @return names of all cached files
+   */
+  public List<String> getFileNames(){
+    lock.readLock().lock();
+    try {
+
+      //a client file can have the same name as a library file. Only list it once.
+      Set<String> names = new LinkedHashSet<String>(contentCache.keySet());
+
+      //library files we haven't read yet are still available.
+      names.addAll(librarySources);
+      return new ArrayList<String>(names);
+
+    }finally{
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Checks if a named file or path has been added to the contents cache
+   *
+   * @param path or name of cached contents
+   * @return true if path has ben cached or false if it hasn't
+   */
+  public boolean isCached(String path){
+    //File file = new File(path);
+    //return contentCache.containsKey(file.getAbsolutePath());
+
+    //check if path already has a cache of its contents.
+    //we're no longer converting a path to it's absolute path in case this is running as a remote service or
+    //if ppl decide to name space their paths somehow.
+    //library files count too; they'll be read from the jar when they're needed.
+    return contentCache.containsKey(path) || librarySources.contains(path);
+  }
+
+  /**
+   * Takes a snapshot of the files a compile needs. Each path is looked up as is and then as an absolute path.
+   * Anything that isn't cached yet (files on disk, library files we haven't needed until now) is read and committed
+   * first, without holding any locks, and none of the compile's other files are evicted to make room for it. Then the
+   * entries are all picked out at once, so the snapshot sees every file as of the same version of the cache.
+   *
+   * @param js paths or names of the js files. Duplicates are fine. Can be null.
+   * @param externs paths or names of custom externs. Ones in the extern cache never change, so they're left out of
+   * the snapshot; the rest are treated like js files. Can be null.
+   * @return the snapshot. Files that couldn't be found are null in it.
+   */
+  public Snapshot snapshot(List<String> js, List<String> externs){
+
+    List<String> paths = new ArrayList<String>();
+    if (js != null) {
+      paths.addAll(js);
+    }
+    if (externs != null) {
+      for (String path : externs) {
+        if (resolveExtern(path) == null) {
+          paths.add(path);
+        }
+      }
+    }
+    return snapshot(paths);
+  }
+
+  /**
+   * Same as above, for js files.
+   *
+   * @param paths paths or names of the files. Duplicates are fine.
+   * @return the snapshot. Files that couldn't be found are null in it.
+   */
+  public Snapshot snapshot(Collection<String> paths){
+
+    //every file the compile needs, under whichever name it's cached. Reading the missing ones can push the cache over
+    //its budget, and the compile's other inputs mustn't be what's evicted to make room for them.
+    Set<String> keep = new HashSet<String>();
+    List<String> missing = new ArrayList<String>();
+
+    lock.readLock().lock();
+    try {
+
+      //the ones we've already got count as used now, not once the rest have been read.
+      long now = clock.incrementAndGet();
+
+      for (String path : new LinkedHashSet<String>(paths)) {
+        keep.add(path);
+        keep.add(new File(path).getAbsolutePath());
+
+        Entry entry = lookup(path);
+        if (entry != null) {
+          entry.lastUsed = now;
+        }else {
+          missing.add(path);
+        }
+      }
+
+    }finally{
+      lock.readLock().unlock();
+    }
+
+    //read whatever's missing.
+    Batch batch = new Batch();
+    for (String path : missing) {
+      load(path, batch);
+    }
+    commit(batch, keep);
+
+    lock.readLock().lock();
+    try {
+
+      //counts as a use, for eviction.
+      long now = clock.incrementAndGet();
+
+      Map<String, Entry> entries = new HashMap<String, Entry>();
+      for (String path : paths) {
+        Entry entry = lookup(path);
+        if (entry != null) {
+          entry.lastUsed = now;
+        }
+        entries.put(path, entry);
+      }
+      return new Snapshot(this, entries, version);
+
+    }finally{
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Same as above, for one file.
+   */
+  public Snapshot snapshot(String path){
+    return snapshot(Collections.singletonList(path));
+  }
+
+  /**
+   * Tries looking for the generic path, then for its absolute path.
+   *
+   * @param path or name of a file.
+   * @return the file's current entry, or null if it isn't cached.
+   */
+  private Entry lookup(String path){
+    Entry entry = contentCache.get(path);
+    return entry != null ? entry : contentCache.get(new File(path).getAbsolutePath());
+  }
+
+  /**
+   * Adds a file that isn't cached to a batch, from the library jar if it's a library file we haven't read yet or
+   * from disk if not.
+   *
+   * @param path or name of a file.
+   * @param batch batch to add it to
+   */
+  private void load(String path, Batch batch){
+
+    for (String name : new String[] {path, new File(path).getAbsolutePath()}){
+      if (librarySources.contains(name)){
+        try {
+
+          batch.add(name, readFromJar(name), Origin.LIBRARY, false);
+          return;
+
+        }catch(IOException ioe){
+          //uh oh
+          System.err.print(ioe);
+          return;
+        }
+      }
     }
 
-    //COMPILE IT ALL
-    compiler.compile(externFiles, jsFiles, options);
+    //whoops, not cached. try to read the file from disk.
+    batch.read(new File(path).getAbsolutePath());
+  }
 
-    //TODO: need to figure out how to also pass map files et. al.
-    return compiler.toSource();
+  /**
+   * Wraps cached contents up as a JSSourceFile for a compile. The contents are only decoded if the compiler asks for
+   * them, which it won't if it's handed an already parsed AST. Holds on to the bytes themselves, so the file being
+   * evicted or changed part way through a compile doesn't affect it.
+   *
+   * @param name name the file is cached under
+   * @param contents the file's contents as UTF-8
+   * @return a source file for the compiler
+   */
+  private static JSSourceFile source(String name, final byte[] contents){
+    return JSSourceFile.fromGenerator(name, new SourceFile.Generator() {
+      public String getCode() {
+        return new String(contents, StandardCharsets.UTF_8);
+      }
+    });
   }
 
   /**
-   * Graps a zip of externs hidden inside compiler.jar and "converts" them to JSSource files.
+   * Looks up the digest of a file's contents. Looks the path up the same way snapshot does, but only in what's cached:
+   * nothing is read (or committed) just to find out. Library files that were read once and have been evicted since
+   * are still known.
    *
-   * @return list of externs pulled from compiler.jar
-   * @throws IOException
+   * @param path or name of a file.
+   * @return hex encoded digest of the file's contents, or null if it isn't cached (or is a library file we haven't
+   * read yet).
    */
-  private static List<JSSourceFile> getDefaultExterns() throws IOException {
+  public String getDigest(String path){
 
-    //look for the zip of externs in compiler.jar
-    InputStream input = Compiler.class.getResourceAsStream("/externs.zip");
+    Entry entry = lookup(path);
+    if (entry != null) {
+      return entry.digest;
+    }
 
-    //read the zip
-    ZipInputStream zip = new ZipInputStream(input);
+    String digest = libraryDigests.get(path);
+    return digest != null ? digest : libraryDigests.get(new File(path).getAbsolutePath());
+  }
 
-    //will contain the JSSourceFile version of each extern
-    List<JSSourceFile> externs = Lists.newLinkedList();
+  /**
+   * Checks whether the cached version of a file is the one the client has. Looks the name up the same way getDigest
+   * does (as is, then as an absolute path). Won't go looking for the file on disk or in the library jar; if we don't
+   * already know its digest it isn't current.
+   *
+   * @param name name (or path) of the file.
+   * @param digest hex encoded SHA-1 of the client's version of the file (as UTF-8). See digest().
+   * @return true if the client doesn't need to send us the file.
+   */
+  public boolean isCurrent(String name, String digest){
+    return digest != null && digest.equalsIgnoreCase(getDigest(name));
+  }
 
-    for (ZipEntry entry = null; (entry = zip.getNextEntry()) != null; ) {
+  /**
+   * Caches an extern as a JSSourceFile
+   *
+   * @param name name of the extern
+   * @param contents contents of the extern
+   */
+  public void addExtern(String name, String contents) {
 
-      //limits size of input. potentially a little quicker.
-      LimitInputStream entryStream = new LimitInputStream(zip, entry.getSize());
+    //the name and contents of this extern will be handled outside of FileCache
+    JSSourceFile source = JSSourceFile.fromCode(name, contents);
 
-      //add the file to our list
-      externs.add(JSSourceFile.fromInputStream(entry.getName(), entryStream));
+    //so just stuff it in the cache.
+    externCache.put(name, source);
+  }
 
-    }
+  /**
+   * caches a javascript file by it's name (potentially a path) as a JSSourceFile
+   * @param name generic name, acts as a key. Potentially a path.
+   * @param contents actually contents of the file.
+   */
+  public void addFile(String name, String contents){
+    addFile(name, contents, false);
+  }
 
-    return externs;
+  /**
+   * Same as above, but the file can be pinned so it's never evicted.
+   *
+   * @param name generic name, acts as a key. Potentially a path.
+   * @param contents actually contents of the file.
+   * @param pin true to keep the file cached no matter what. false un-pins it if it was pinned before.
+   */
+  public void addFile(String name, String contents, boolean pin){
+    Batch batch = new Batch();
+    batch.add(name, contents, pin);
+    commit(batch);
+  }
 
+  /**
+   * Adds a batch of files to the cache all at once. Files to be read from disk are read first (in parallel, on the io
+   * pool). Then the whole batch is swapped in under the write lock, so a snapshot sees all of it or none of it.
+   * Nothing slow happens while the lock is held; the entries were built (encoded, hashed and scanned) beforehand.
+   *
+   * @param batch files to add. Files that can't be read are left out (and the error printed).
+   */
+  public void commit(Batch batch){
+    commit(batch, Collections.<String>emptySet());
   }
-}
 
-/**
- * Simple class to help with reading and caching files to memory.
- *
- * @author Matt Powell (twitter.com/mattpowell)
- */
-class FileCache {
+  /**
+   * Same as above, but files named in keep aren't evicted to make room for the batch either.
+   *
+   * @param batch files to add
+   * @param keep names (as they're cached) of files that have to stay, besides the batch's own
+   */
+  private void commit(Batch batch, Set<String> keep){
 
-  //acts as the cache for all js source files. protected because I'm cheating above for the getFiles cmd.
-  protected Map<String, JSSourceFile> contentCache = new HashMap<String, JSSourceFile>();
+    if (batch.isEmpty()) {
+      return;
+    }
 
-  //acts as the cache for all extern files
-  protected Map<String, JSSourceFile> externCache = new HashMap<String, JSSourceFile>();
+    List<Entry> entries = new ArrayList<Entry>(batch.entries);
+    List<Entry> read = read(batch.paths);
+    if (read == null) {
+      //we're being shut down. Don't bother with the rest.
+      return;
+    }
+    entries.addAll(read);
+
+    if (verbose) {
+      for (Entry entry : entries) {
+        System.out.println("addFile: " + entry.name);
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+
+      long now = clock.incrementAndGet();
+
+      //files in this batch, which aren't to be evicted to make room for each other.
+      Set<String> names = new HashSet<String>(keep);
+
+      for (Entry entry : entries) {
+        names.add(entry.name);
+        store(entry).lastUsed = now;
+      }
+
+      version++;
+      evict(names);
+
+    }finally{
+      lock.writeLock().unlock();
+    }
+
+    for (Entry entry : read) {
+      watch(entry.name);
+    }
+  }
 
   /**
-   * Only constructor for FileCache. Will try to preload Closure Library if preloadClosure is true
+   * Reads files from disk for a batch. Not worth handing off to the io pool unless there's more than one.
    *
-   * @param preloadClosure if true (default) will load the entire Closure Library in to memory.
-   * @throws IOException couldn't read a file from disk
-   * @throws URISyntaxException couldn't read a file from inside the jar
+   * @param paths paths to files. can be relative or absolute.
+   * @return an entry for each file that could be read, in order, or null if we were interrupted.
    */
-  public FileCache(boolean preloadClosure) throws IOException, URISyntaxException {
-    if (preloadClosure) {
-
-      //looks inside of this jar for a list of files in lib/closure-library/(closure|externs)
-      Map<String, Set<String>> closureFiles = listClosureLibraryFiles();
+  private List<Entry> read(final List<String> paths){
 
-      //all the js files inside of closure/
-      Set<String> closureSources = closureFiles.get("sources");
+    List<Entry> entries = new ArrayList<Entry>(paths.size());
 
-      //all the js files (externs) inside externs/
-      Set<String> closureExterns = closureFiles.get("externs");
+    if (paths.size() < 2) {
+      for (String path : paths) {
+        try {
 
+          entries.add(new Entry(path, readFromDisk(path), Origin.DISK, false));
 
-      //reads the closure library from within the jar and "caches" them as JSSourceFiles
-      if (closureSources != null) {
-        for (String file : closureSources){
-          addFile(file, readFromJar(file));
+        }catch(IOException ioe){
+          //uh oh
+          System.err.print(ioe);
         }
       }
+      return entries;
+    }
 
-      //reads some predefined extern files from within the jar and "caches" them as JSSourceFiles
-      if (closureExterns != null) {
-        for (String extern : closureExterns){
-          addExtern(extern, readFromJar(extern));
+    //start reading all of them. Encoding and hashing happens on the io pool too.
+    List<Future<Entry>> reads = new ArrayList<Future<Entry>>(paths.size());
+    for (final String path : paths) {
+      reads.add(ioPool.submit(new Callable<Entry>() {
+        public Entry call() throws IOException {
+          return new Entry(path, readFromDisk(path), Origin.DISK, false);
         }
+      }));
+    }
+
+    for (Future<Entry> read : reads) {
+      try {
+
+        entries.add(read.get());
+
+      }catch(ExecutionException e){
+
+        //uh oh
+        System.err.print(e.getCause());
+
+      }catch(InterruptedException e){
+
+        Thread.currentThread().interrupt();
+        return null;
+
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Puts an entry in the cache. If the contents are the same as what we've already got, the cached entry (and anything
+   * already parsed from it) is kept. Caller needs to hold the write lock.
+   *
+   * @param entry the new version of the file
+   * @return the entry that ended up in the cache
+   */
+  private Entry store(Entry entry){
+
+    Entry previous = contentCache.get(entry.name);
+
+    //same contents we've already got. Counts as a use.
+    if (previous != null && previous.digest.equals(entry.digest)) {
+      if (previous.origin == entry.origin && previous.pinned == entry.pinned) {
+        return previous;
       }
+      entry = new Entry(previous, entry.origin, entry.pinned);
+    }
+
+    //so just stuff it in the cache.
+    contentCache.put(entry.name, entry);
+    totalBytes += entry.contents.length - (previous != null ? previous.contents.length : 0);
+
+    //it's a regular cached file now.
+    if (entry.origin == Origin.LIBRARY) {
+      librarySources.remove(entry.name);
+      libraryDigests.put(entry.name, entry.digest);
     }
 
+    //only this file's provides/requires need another look.
+    if (previous == null || previous.deps != entry.deps) {
+      dependencyIndex.update(entry.name, entry.deps);
+    }
+    return entry;
   }
 
   /**
-   * Used to pull file contents from inside the jar. The path needs to be in "jar syntax".
-   * No assumptions are made on lookup. File is there, or it's not. Callers should handle variations.
+   * Evicts the least recently used files until we're back under budget. Pinned files are left alone, and so are the
+   * files that were just committed, even if they're bigger than the whole budget (something's about to compile
+   * them). Caller needs to hold the write lock.
    *
-   * @param path to file inside the jar
-   * @return returns the contents of the file specified by the path
-   * @throws IOException couldn't find the path in the jar
+   * @param keep names of files not to evict.
    */
-  private String readFromJar(String path) throws IOException{
+  private void evict(Set<String> keep){
 
-    //assuming the passed in path will resolve within the jar.
-    InputStream is = getClass().getResourceAsStream(path);
-    StringBuilder sb = new StringBuilder();
-    if (is != null){
+    if (maxBytes <= 0 || totalBytes <= maxBytes) {
+      return;
+    }
+
+    List<Entry> candidates = new ArrayList<Entry>();
+    for (Entry entry : contentCache.values()) {
+      if (!entry.pinned && !keep.contains(entry.name)) {
+        candidates.add(entry);
+      }
+    }
+
+    //oldest first. Snapshots stamp lastUsed under the read lock, so nothing changes while we sort.
+    Collections.sort(candidates, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+      }
+    });
+
+    for (Entry entry : candidates) {
+
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+
+      contentCache.remove(entry.name);
+      totalBytes -= entry.contents.length;
+      evictions++;
 
-      BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-      String line;
+      if (entry.origin == Origin.LIBRARY) {
+
+        //it'll be read from the jar again if it's needed.
+        librarySources.add(entry.name);
+
+      }else if (entry.origin != Origin.DISK) {
+
+        //only the client has this one. It'll have to send it again (sync will tell it so), and until it does nothing
+        //provides what it provided. Files read from disk are read again when they're compiled (see snapshot()), so
+        //they stay indexed.
+        dependencyIndex.remove(entry.name);
 
-      //read all lines of the stream
-      while ((line = reader.readLine()) != null) {
-       sb.append(line);
-       //tack on a new line so we don't accidentally mess up the meaning of the file.
-       sb.append(System.getProperty("line.separator"));
       }
     }
-    return sb.toString();
   }
 
   /**
-   * Checks if a named file or path has been added to the contents cache
+   * Works out which files a set of entry points needs and in what order, from what every cached file (and every
+   * library file) goog.provide's and goog.require's.
    *
-   * @param path or name of cached contents
-   * @return true if path has ben cached or false if it hasn't
+   * @param entryPoints namespaces to compile
+   * @return names of the files to compile, in order. Library files in the list may not have been read yet; they will
+   * be when they're compiled.
+   * @throws IllegalArgumentException a namespace isn't provided anywhere or there's a circular dependency
    */
-  public boolean isCached(String path){
-    //File file = new File(path);
-    //return contentCache.containsKey(file.getAbsolutePath());
+  public List<String> resolveDependencies(List<String> entryPoints){
+    return dependencyIndex.resolve(entryPoints);
+  }
 
-    //check if path already has a cache of its contents.
-    //we're no longer converting a path to it's absolute path in case this is running as a remote service or
-    //if ppl decide to name space their paths somehow.
-    return contentCache.containsKey(path);
+  /**
+   * Hashes file contents so we can cheaply tell whether two versions of a file are the same.
+   *
+   * @param contents contents of a file
+   * @return hex encoded SHA-1 of the contents (as UTF-8)
+   */
+  static String digest(String contents){
+    return digest(contents.getBytes(StandardCharsets.UTF_8));
   }
 
   /**
-   * Tries to get the a JSSourceFile associated with a path/named file. Tries looking for the generic path,
-   * then tries to resolve the path and pull an absolute path, and if it's still not cached it'll try to read from
-   * disk via addFile
+   * Same as above, for contents that have already been encoded as UTF-8.
    *
-   * @param path or name file associated with a JSSourceFile.
-   * @return the JSSourceFile.
+   * @param contents contents of a file, as UTF-8
+   * @return hex encoded SHA-1 of the contents
    */
-  public JSSourceFile getJSSourceFile(String path){
+  static String digest(byte[] contents){
+    try {
+
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(contents);
 
-    if (!isCached(path)) {
-      //if this path isn't cached, try it's absolute path.
-      path = new File(path).getAbsolutePath();
-      if (!isCached(path)){
-        //whoops, not cached. try to have addFile read the file from disk first.
-        addFile(path);
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
       }
+      return sb.toString();
+
+    }catch(NoSuchAlgorithmException e){
+      //every JVM has to ship SHA-1.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Will try to look up a file on the disk. Not useful if this is being run as a remote service.
+   * @param path path to file. can be relative or absolute.
+   */
+  public void addFile(String path) {
+    addFiles(Collections.singletonList(path));
+  }
+
+  /**
+   * Same as addFile(path), for a whole batch of paths. Files are read from disk in parallel (on the io pool) and
+   * committed together.
+   *
+   * @param paths paths to files. can be relative or absolute.
+   */
+  public void addFiles(List<String> paths) {
+    Batch batch = new Batch();
+    for (String path : paths) {
+      batch.read(path);
     }
+    commit(batch);
+  }
 
-    //will pass null or the cached JSSource of the path.
-    return contentCache.get(path);
+  /**
+   * @param verbose true to print every file that's added to stdout
+   */
+  public void setVerbose(boolean verbose){
+    this.verbose = verbose;
   }
 
-  public JSSourceFile getJSSourceExtern(String path){
-    if (!isCached(path)) {
-      //if this path isn't cached, try it's absolute path.
-      path = new File(path).getAbsolutePath();
-      if (!isCached(path)){
-        //whoops, not cached. try to have addFile read the file from disk first.
-        //addExtern(path);
+  /**
+   * @return how many files are cached and how much memory their contents take up, for the `stats` command.
+   */
+  public Map<String, Object> getStats(){
+    lock.readLock().lock();
+    try {
+
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      stats.put("files", contentCache.size());
+      stats.put("bytes", totalBytes);
+      stats.put("maxBytes", maxBytes);
+
+      //every parser setting a file's been parsed with holds its own tree.
+      int pinned = 0;
+      int parsedTrees = 0;
+      for (Entry entry : contentCache.values()) {
+        pinned += entry.pinned ? 1 : 0;
+        parsedTrees += entry.parsed.size();
       }
+      stats.put("pinned", pinned);
+      stats.put("evictions", evictions);
+      stats.put("parsedTrees", parsedTrees);
+      stats.put("externs", externCache.size());
+      stats.put("unreadLibraryFiles", librarySources.size());
+      stats.put("version", version);
+      return stats;
+
+    }finally{
+      lock.readLock().unlock();
     }
-    //will pass null or the cached JSSource of the path.
-    return externCache.get(path);
   }
 
   /**
-   * Caches an extern as a JSSourceFile
+   * Drops a file from the cache.
    *
-   * @param name name of the extern
-   * @param contents contents of the extern
+   * @param name name (or path) the file is cached under.
    */
-  public void addExtern(String name, String contents) {
+  public void remove(String name){
+    lock.writeLock().lock();
+    try {
 
-    //the name and contents of this extern will be handled outside of FileCache
-    JSSourceFile source = JSSourceFile.fromCode(name, contents);
+      Entry previous = contentCache.remove(name);
+      if (previous != null) {
+        totalBytes -= previous.contents.length;
+        version++;
+      }
+      dependencyIndex.remove(name);
 
-    //so just stuff it in the cache.
-    externCache.put(name, source);
+    }finally{
+      lock.writeLock().unlock();
+    }
   }
 
   /**
-   * caches a javascript file by it's name (potentially a path) as a JSSourceFile
-   * @param name generic name, acts as a key. Potentially a path.
-   * @param contents actually contents of the file.
+   * Starts watching files read from disk (from here on) for changes. Changed files are re-read in the background and
+   * deleted ones are dropped from the cache, so compiles always see what's on disk.
+   *
+   * @throws IOException couldn't set up the watch service
    */
-  public void addFile(String name, String contents){
+  public void startWatching() throws IOException {
 
-    //TODO: wrap this behind the verbose flag
-    System.out.println("addFile: " + name);
+    watchService = FileSystems.getDefault().newWatchService();
 
-    //the name and contents of this js source will be handled outside of FileCache
-    JSSourceFile source = JSSourceFile.fromCode(name, contents);
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        processWatchEvents();
+      }
+    }, "FileCache-watch");
 
-    //so just stuff it in the cache.
-    contentCache.put(name, source);
+    //don't keep the jvm alive on our account.
+    thread.setDaemon(true);
+    thread.start();
   }
 
   /**
-   * Will try to look up a file on the disk. Not useful if this is being run as a remote service.
-   * @param path path to file. can be relative or absolute.
+   * Starts watching a file that was just read from disk, if we're watching at all.
+   *
+   * @param path the path the file was read from (and is cached under).
    */
-  public void addFile(String path) {
+  private void watch(String path){
 
-    //TODO: wrap this behind the verbose flag
-    System.out.println("addFile: " + path);
+    if (watchService == null){
+      return;
+    }
 
-    try{
+    Path file = Paths.get(path).toAbsolutePath().normalize();
+    watchedFiles.put(file, path);
 
-      //see if we have access to the file at the specified path.
-      File file = new File(path);
-      Scanner scanner = new Scanner(file);
-      String contents = "";
-      while (scanner.hasNextLine()) {
+    //the watch service works on directories, so register the file's directory (once).
+    Path dir = file.getParent();
+    if (dir != null && watchedDirs.add(dir)){
+      try {
+
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+      }catch(IOException ioe){
+        //can't watch it. We'll try again next time a file from this directory gets added.
+        watchedDirs.remove(dir);
+        System.err.print(ioe);
+      }
+    }
+  }
+
+  /**
+   * Loops forever (on the watch thread) handling changes in watched directories.
+   */
+  private void processWatchEvents(){
+    while (true) {
+
+      WatchKey key;
+      try {
+
+        //wait for something to change.
+        key = watchService.take();
+
+      }catch(InterruptedException e){
+        return;
+      }catch(ClosedWatchServiceException e){
+        return;
+      }
+
+      Path dir = (Path) key.watchable();
+
+      for (WatchEvent<?> event : key.pollEvents()){
 
-        //get the contents of this line
-        contents += scanner.nextLine();
+        if (event.kind() == OVERFLOW){
 
-        //only add a new line if there's another line to be read.
-        if (scanner.hasNextLine()) {
-          contents += System.getProperty("line.separator");
+          //missed some events. Re-read everything we're watching in this directory to be safe.
+          for (Path file : watchedFiles.keySet()){
+            if (dir.equals(file.getParent())){
+              refresh(file);
+            }
+          }
+
+        }else {
+          refresh(dir.resolve((Path) event.context()));
         }
       }
 
-      //we've read the contents from disk, now add it to the cache
-      addFile(path, contents);
+      //the directory's gone. It'll be registered again if a file in it gets added again.
+      if (!key.reset()){
+        watchedDirs.remove(dir);
+      }
+    }
+  }
+
+  /**
+   * Re-reads a watched file, or drops it from the cache if it's been deleted. Files we aren't watching are ignored.
+   *
+   * @param file absolute path of the file that changed.
+   */
+  private void refresh(Path file){
+
+    String name = watchedFiles.get(file);
+    if (name == null){
+      return;
+    }
+
+    try {
+
+      //won't touch the cache if the contents are the same.
+      Batch batch = new Batch();
+      batch.add(name, readFromDisk(file.toString()), Origin.DISK, false);
+      commit(batch);
 
-    }catch (FileNotFoundException fnfe){
+    }catch(NoSuchFileException e){
+
+      //gone. Keep watching for it though; editors like to delete and re-create files on save.
+      remove(name);
+
+    }catch(IOException ioe){
       //uh oh
-      System.err.print(fnfe);
+      System.err.print(ioe);
     }
+  }
+
+  /**
+   * Reads a whole file from disk in one go and decodes it as UTF-8. The contents are left exactly as they are on disk
+   * (line endings included).
+   *
+   * @param path path to file. can be relative or absolute.
+   * @return contents of the file
+   * @throws IOException couldn't read the file
+   */
+  static String readFromDisk(String path) throws IOException {
+    return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Finds the jar we're running from, if it has the Closure Library in it.
+   * @return the jar, or null if we aren't running from a jar.
+   * @throws IOException couldn't open the jar
+   */
+  JarFile findClosureLibraryJar() throws IOException {
+
+    //used to get path to jar
+    URL directory = getClass().getClassLoader().getResource("closure/");
+
+    if (directory != null && directory.getProtocol().equals("jar")) {
+      //extract actual path
+      String jarPath = directory.getPath().substring(5, directory.getPath().indexOf("!"));
 
+      //load the jar. decode path in case of spaces
+      return new JarFile(URLDecoder.decode(jarPath, "UTF-8"));
+    }
+    return null;
   }
 
   /**
-   * Tries to get a list of all the Closure Library files and externs that are in the lib directory of this jar
+   * Tries to get a list of all the Closure Library files and externs that are in the lib directory of the jar
+   * @param jar the jar to look in
    * @return a Map of sources and externs which are sets of (path) names.
-   * @throws URISyntaxException couldn't find the jar/folder
-   * @throws IOException couldn't find the jar/folder
    */
-  Map<String,Set<String>> listClosureLibraryFiles() throws URISyntaxException, IOException {
+  Map<String,Set<String>> listClosureLibraryFiles(JarFile jar) {
 
     //potentially a map of a list of Closure Library files and a list of externs (read from lib/closure-library/)
     Map<String, Set<String>> result = new HashMap<String, Set<String>>();
@@ -685,33 +3253,22 @@ class FileCache {
     result.put("sources", sources);
     result.put("externs", externs);
 
-    //used to get path to jar
-    URL directory = getClass().getClassLoader().getResource("closure/");
-
-    if (directory != null && directory.getProtocol().equals("jar")) {
-      //extract actual path
-      String jarPath = directory.getPath().substring(5, directory.getPath().indexOf("!"));
-
-      //load the jar. decode path in case of spaces
-      JarFile jar = new JarFile(URLDecoder.decode(jarPath, "UTF-8"));
+    //enumerate ALL files.
+    Enumeration<JarEntry> entries = jar.entries();
+    while(entries.hasMoreElements()) {
 
-      //enumerate ALL files.
-      Enumeration<JarEntry> entries = jar.entries();
-      while(entries.hasMoreElements()) {
+      //file name
+      String name = entries.nextElement().getName();
 
-        //file name
-        String name = entries.nextElement().getName();
+      //only js files and only if they're in a closure folder; closure or third_party. colud potentially paramaterize these.
+      if (name.endsWith(".js") && (name.startsWith("closure/") || name.startsWith("third_party/"))) {
 
-        //only js files and only if they're in a closure folder; closure or third_party. colud potentially paramaterize these.
-        if (name.endsWith(".js") && (name.startsWith("closure/") || name.startsWith("third_party/"))) {
+        sources.add(name);
 
-          sources.add(name);
+      }else if (name.endsWith(".js") && name.startsWith("externs/")) {
 
-        }else if (name.endsWith(".js") && name.startsWith("externs/")) {
+        externs.add(name);
 
-          externs.add(name);
-          
-        }
       }
     }
     return result;